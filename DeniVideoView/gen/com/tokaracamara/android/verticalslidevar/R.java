@@ -68,6 +68,7 @@ public final class R {
         public static final int pause=0x7f060009;
         public static final int relativeLayout=0x7f060008;
         public static final int rightButtons=0x7f06000e;
+        public static final int scrub_preview=0x7f060014;
         public static final int textView1=0x7f060002;
         public static final int textView2=0x7f060004;
         public static final int textView3=0x7f060006;
@@ -1,9 +1,9 @@
 package ru.denivip.android.videoview;
 
 import ru.denivip.android.video.MediaController;
+import ru.denivip.android.video.PlaybackRetainer;
 import ru.denivip.android.video.VideoView;
 import android.app.Activity;
-import android.content.res.Configuration;
 import android.net.Uri;
 import android.os.Bundle;
 
@@ -14,37 +14,56 @@ public class Main extends Activity {
 	private static final String TEST_STREAM_REMOTE = "http://www.denivip.ru/sites/default/files/trailer2.mp4";
 
 	private VideoView mVideo;
-	
+
+	private PlaybackRetainer mRetainer;
+
 	/** Called when the activity is first created. */
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.main);
-		
+
 		mVideo = (VideoView) findViewById(R.id.videoView);
 		mVideo.requestFocus();
+		// the player must survive the surface of the old activity going away
+		// while the activity is recreated
+		mVideo.setKeepPlayingOnSurfaceLoss(true);
+		mVideo.setPosterEnabled(true);
 
 		MediaController controller = new MediaController(this);
 
 		mVideo.setMediaController(controller);
-		mVideo.setVideoURI(Uri.parse(TEST_STREAM_REMOTE));
-		mVideo.start();
+
+		// continue the same playback after a configuration change, or where it
+		// was left off after the process was killed in the background
+		mRetainer = new PlaybackRetainer(this, mVideo);
+		if (!mRetainer.restore()
+				&& !(savedInstanceState != null && mVideo.resumeFromSnapshot())) {
+			mVideo.setVideoURI(Uri.parse(TEST_STREAM_REMOTE));
+			mVideo.start();
+		}
 	}
 
 	@Override
-	protected void onPause() {
-		super.onPause();
-		mVideo.suspend();
+	protected void onStop() {
+		super.onStop();
+		mRetainer.onStop();
 	}
 
 	@Override
 	protected void onResume() {
 		super.onResume();
-		mVideo.resume();
+		mRetainer.onResume();
+	}
+
+	@Override
+	public Object onRetainNonConfigurationInstance() {
+		return mRetainer.onRetainNonConfigurationInstance();
 	}
 
 	@Override
-	public void onConfigurationChanged(Configuration newConfig) {
-		super.onConfigurationChanged(newConfig);
+	protected void onDestroy() {
+		super.onDestroy();
+		mRetainer.onDestroy();
 	}
 }
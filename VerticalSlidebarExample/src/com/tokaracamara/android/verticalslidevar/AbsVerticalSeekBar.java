@@ -34,6 +34,8 @@ public class AbsVerticalSeekBar extends VerticalProgressBar{
     private static final int NO_ALPHA = 0xFF;
     private float mDisabledAlpha;
 
+    private final Rect mOldThumbBounds = new Rect();
+
     public AbsVerticalSeekBar(Context context) {
     	super(context);
     }
@@ -123,7 +125,7 @@ public class AbsVerticalSeekBar extends VerticalProgressBar{
     }
 
     @Override
-    public synchronized void setMax(int max) {
+    public void setMax(int max) {
         super.setMax(max);
 
         if ((mKeyProgressIncrement == 0) || (getMax() / mKeyProgressIncrement > 20)) {
@@ -157,13 +159,23 @@ public class AbsVerticalSeekBar extends VerticalProgressBar{
     void onProgressRefresh(float scale, boolean fromUser) {
         Drawable thumb = mThumb;
         if (thumb != null) {
+            thumb.copyBounds(mOldThumbBounds);
             setThumbPos(getHeight(), thumb, scale, Integer.MIN_VALUE);
+            Rect bounds = thumb.getBounds();
+            if (bounds.top == mOldThumbBounds.top) {
+                // the thumb didn't move by a pixel
+                return;
+            }
             /*
              * Since we draw translated, the drawable's bounds that it signals
              * for invalidation won't be the actual bounds we want invalidated,
-             * so just invalidate this whole view.
+             * so invalidate the old and new thumb translated the same way.
              */
-            invalidate();
+            mOldThumbBounds.union(bounds);
+            int dx = mPaddingLeft;
+            int dy = mPaddingTop - mThumbOffset;
+            invalidate(mOldThumbBounds.left + dx, mOldThumbBounds.top + dy,
+                    mOldThumbBounds.right + dx, mOldThumbBounds.bottom + dy);
         }
     }
 
@@ -229,7 +241,7 @@ public class AbsVerticalSeekBar extends VerticalProgressBar{
     }
 
     @Override
-    protected synchronized void onDraw(Canvas canvas) {
+    protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
         if (mThumb != null) {
             canvas.save();
@@ -242,7 +254,7 @@ public class AbsVerticalSeekBar extends VerticalProgressBar{
     }
 
     @Override
-    protected synchronized void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         Drawable d = getCurrentDrawable();
 
         int thumbWidth = mThumb == null ? 0 : mThumb.getIntrinsicWidth();
@@ -22,6 +22,11 @@ import android.view.ViewParent;
 import android.widget.ProgressBar;
 import android.widget.RemoteViews.RemoteView;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 
 
 
@@ -29,23 +34,62 @@ import android.widget.RemoteViews.RemoteView;
 public class VerticalProgressBar extends View {
     private static final int MAX_LEVEL = 10000;
 
+    /**
+     * The largest max a progress bar can have.
+     */
+    public static final int MAX_VALUE = (1 << 21) - 1;
+
+    private static final int PENDING_PROGRESS = 1;
+    private static final int PENDING_SECONDARY_PROGRESS = 2;
+    private static final int PENDING_FROM_USER = 4;
+
+    private static final int TILE_CACHE_SIZE = 16;
+
+    /*
+     * The tiled version of each progress drawable, so bars sharing a style
+     * clone it instead of building it again. Drawables tileify() leaves as
+     * they are, such as nine-patches, are kept as well.
+     */
+    private static final LinkedHashMap<Drawable.ConstantState, TiledState> sTileCache =
+            new LinkedHashMap<Drawable.ConstantState, TiledState>(TILE_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Drawable.ConstantState, TiledState> eldest) {
+            return size() > TILE_CACHE_SIZE;
+        }
+    };
+
+    private static final class TiledState {
+        final Drawable.ConstantState mState;
+        // shapes are resized with their drawable and must not be shared
+        final boolean mHasShapes;
+
+        TiledState(Drawable.ConstantState state, boolean hasShapes) {
+            mState = state;
+            mHasShapes = hasShapes;
+        }
+    }
+
     int mMinWidth;
     int mMaxWidth;
     int mMinHeight;
     int mMaxHeight;
 
-    private int mProgress;
-    private int mSecondaryProgress;
-    private int mMax;
+    /*
+     * Progress, secondary progress and max packed into 21 bits each, so they
+     * are updated together from any thread and read without a lock.
+     */
+    private final AtomicLong mState = new AtomicLong();
+    private final AtomicInteger mPendingRefresh = new AtomicInteger();
 
     private Drawable mProgressDrawable;
     private Drawable mCurrentDrawable;
     Bitmap mSampleTile;
     private boolean mNoInvalidate;
-    private RefreshProgressRunnable mRefreshProgressRunnable;
     private long mUiThreadId;
 
     private boolean mInDrawing;
+    private boolean mInLevelChange;
+    private boolean mTileifiedShapes;
 
     protected int mScrollX;
 	protected int mScrollY;
@@ -79,7 +123,7 @@ public class VerticalProgressBar extends View {
 
         Drawable drawable = a.getDrawable(R.styleable.ProgressBar_android_progressDrawable);
         if (drawable != null) {
-            drawable = tileify(drawable, false);
+            drawable = tileifyShared(drawable);
             // Calling this method can set mMaxHeight, make sure the corresponding
             // XML attribute for mMaxHeight is read after calling this method
             setProgressDrawable(drawable);
@@ -91,18 +135,47 @@ public class VerticalProgressBar extends View {
         mMinHeight = a.getDimensionPixelSize(R.styleable.ProgressBar_android_minHeight, mMinHeight);
         mMaxHeight = a.getDimensionPixelSize(R.styleable.ProgressBar_android_maxHeight, mMaxHeight);
 
-        setMax(a.getInt(R.styleable.ProgressBar_android_max, mMax));
+        setMax(a.getInt(R.styleable.ProgressBar_android_max, getMax()));
 
-        setProgress(a.getInt(R.styleable.ProgressBar_android_progress, mProgress));
+        setProgress(a.getInt(R.styleable.ProgressBar_android_progress, getProgress()));
 
         setSecondaryProgress(
-                a.getInt(R.styleable.ProgressBar_android_secondaryProgress, mSecondaryProgress));
+                a.getInt(R.styleable.ProgressBar_android_secondaryProgress, getSecondaryProgress()));
 
         mNoInvalidate = false;
 
         a.recycle();
     }
 
+    /**
+     * Like {@link #tileify(Drawable, boolean)}, but builds the tiled drawable
+     * only once per source drawable and clones it for every other bar.
+     */
+    private Drawable tileifyShared(Drawable drawable) {
+        final Drawable.ConstantState key = drawable.getConstantState();
+        if (key == null) {
+            return tileify(drawable, false);
+        }
+        TiledState cached;
+        synchronized (sTileCache) {
+            cached = sTileCache.get(key);
+        }
+        if (cached != null) {
+            Drawable d = cached.mState.newDrawable(getResources());
+            return cached.mHasShapes ? d.mutate() : d;
+        }
+
+        mTileifiedShapes = false;
+        Drawable tiled = tileify(drawable, false);
+        final Drawable.ConstantState state = tiled.getConstantState();
+        if (state != null) {
+            synchronized (sTileCache) {
+                sTileCache.put(key, new TiledState(state, mTileifiedShapes));
+            }
+        }
+        return tiled;
+    }
+
     /**
      * Converts a drawable to a tiled version of itself. It will recursively
      * traverse layer and state list drawables.
@@ -135,6 +208,7 @@ public class VerticalProgressBar extends View {
             }
 
             final ShapeDrawable shapeDrawable = new ShapeDrawable(getDrawableShape());
+            mTileifiedShapes = true;
             return (clip) ? new ClipDrawable(shapeDrawable, Gravity.LEFT,
                     ClipDrawable.HORIZONTAL) : shapeDrawable;
         }
@@ -157,9 +231,7 @@ public class VerticalProgressBar extends View {
      * </ul>
      */
     private void initProgressBar() {
-        mMax = 100;
-        mProgress = 0;
-        mSecondaryProgress = 0;
+        mState.set(pack(0, 0, 100));
         mMinWidth = 24;
         mMaxWidth = 48;
         mMinHeight = 24;
@@ -220,34 +292,43 @@ public class VerticalProgressBar extends View {
         }
     }
 
-    private class RefreshProgressRunnable implements Runnable {
+    private static long pack(int progress, int secondaryProgress, int max) {
+        return ((long) max << 42) | ((long) secondaryProgress << 21) | progress;
+    }
 
-        private int mId;
-        private int mProgress;
-        private boolean mFromUser;
+    private static int progress(long state) {
+        return (int) (state & MAX_VALUE);
+    }
 
-        RefreshProgressRunnable(int id, int progress, boolean fromUser) {
-            mId = id;
-            mProgress = progress;
-            mFromUser = fromUser;
-        }
+    private static int secondaryProgress(long state) {
+        return (int) ((state >>> 21) & MAX_VALUE);
+    }
 
-        public void run() {
-            doRefreshProgress(mId, mProgress, mFromUser);
-            // Put ourselves back in the cache when we are done
-            mRefreshProgressRunnable = this;
-        }
+    private static int max(long state) {
+        return (int) ((state >>> 42) & MAX_VALUE);
+    }
 
-        public void setup(int id, int progress, boolean fromUser) {
-            mId = id;
-            mProgress = progress;
-            mFromUser = fromUser;
+    /*
+     * Applies the latest values when updates came from other threads. However
+     * many updates arrive, at most one of these is posted at a time.
+     */
+    private final Runnable mRefreshProgressRunnable = new Runnable() {
+        public void run() {
+            int pending = mPendingRefresh.getAndSet(0);
+            long state = mState.get();
+            boolean fromUser = (pending & PENDING_FROM_USER) != 0;
+            if ((pending & PENDING_SECONDARY_PROGRESS) != 0) {
+                doRefreshProgress(android.R.id.secondaryProgress, secondaryProgress(state),
+                        max(state), false);
+            }
+            if ((pending & PENDING_PROGRESS) != 0) {
+                doRefreshProgress(android.R.id.progress, progress(state), max(state), fromUser);
+            }
         }
+    };
 
-    }
-
-    private synchronized void doRefreshProgress(int id, int progress, boolean fromUser) {
-        float scale = mMax > 0 ? (float) progress / (float) mMax : 0;
+    private void doRefreshProgress(int id, int progress, int max, boolean fromUser) {
+        float scale = max > 0 ? (float) progress / (float) max : 0;
         final Drawable d = mCurrentDrawable;
         if (d != null) {
             Drawable progressDrawable = null;
@@ -257,7 +338,18 @@ public class VerticalProgressBar extends View {
             }
 
             final int level = (int) (scale * MAX_LEVEL);
-            (progressDrawable != null ? progressDrawable : d).setLevel(level);
+            final Drawable target = progressDrawable != null ? progressDrawable : d;
+            final int oldLevel = target.getLevel();
+            if (level != oldLevel) {
+                // the drawable would invalidate all of its bounds
+                mInLevelChange = true;
+                try {
+                    target.setLevel(level);
+                } finally {
+                    mInLevelChange = false;
+                }
+                invalidateLevelBand(target.getBounds(), oldLevel, level);
+            }
         } else {
             invalidate();
         }
@@ -267,25 +359,43 @@ public class VerticalProgressBar extends View {
         }
     }
 
+    /*
+     * Invalidate the part of the bar between two levels. The level grows
+     * from the bottom of the drawable.
+     */
+    private void invalidateLevelBand(Rect bounds, int oldLevel, int newLevel) {
+        final int height = bounds.height();
+        final int top = bounds.bottom
+                - (int) ((long) height * Math.max(oldLevel, newLevel) / MAX_LEVEL);
+        final int bottom = bounds.bottom
+                - (int) ((long) height * Math.min(oldLevel, newLevel) / MAX_LEVEL);
+        final int scrollX = mScrollX + mPaddingLeft;
+        final int scrollY = mScrollY + mPaddingTop;
+
+        // a pixel more on each side for the rounding of the clip
+        invalidate(bounds.left + scrollX, top - 1 + scrollY,
+                bounds.right + scrollX, bottom + 1 + scrollY);
+    }
+
     void onProgressRefresh(float scale, boolean fromUser) {
     }
 
-    private synchronized void refreshProgress(int id, int progress, boolean fromUser) {
+    private void refreshProgress(int id, long state, boolean fromUser) {
         if (mUiThreadId == Thread.currentThread().getId()) {
-            doRefreshProgress(id, progress, fromUser);
+            int progress = id == android.R.id.progress ? progress(state) : secondaryProgress(state);
+            doRefreshProgress(id, progress, max(state), fromUser);
         } else {
-            RefreshProgressRunnable r;
-            if (mRefreshProgressRunnable != null) {
-                // Use cached RefreshProgressRunnable if available
-                r = mRefreshProgressRunnable;
-                // Uncache it
-                mRefreshProgressRunnable = null;
-                r.setup(id, progress, fromUser);
-            } else {
-                // Make a new one
-                r = new RefreshProgressRunnable(id, progress, fromUser);
+            int flag = id == android.R.id.progress ? PENDING_PROGRESS : PENDING_SECONDARY_PROGRESS;
+            if (fromUser) {
+                flag |= PENDING_FROM_USER;
+            }
+            int pending;
+            do {
+                pending = mPendingRefresh.get();
+            } while (!mPendingRefresh.compareAndSet(pending, pending | flag));
+            if (pending == 0) {
+                post(mRefreshProgressRunnable);
             }
-            post(r);
         }
     }
 
@@ -297,23 +407,26 @@ public class VerticalProgressBar extends View {
      * @see #getProgress()
      * @see #incrementProgressBy(int)
      */
-    public synchronized void setProgress(int progress) {
+    public void setProgress(int progress) {
         setProgress(progress, false);
     }
 
-    synchronized void setProgress(int progress, boolean fromUser) {
+    void setProgress(int progress, boolean fromUser) {
         if (progress < 0) {
             progress = 0;
         }
 
-        if (progress > mMax) {
-            progress = mMax;
-        }
-
-        if (progress != mProgress) {
-            mProgress = progress;
-            refreshProgress(android.R.id.progress, mProgress, fromUser);
-        }
+        long state;
+        long newState;
+        do {
+            state = mState.get();
+            int p = Math.min(progress, max(state));
+            if (p == progress(state)) {
+                return;
+            }
+            newState = pack(p, secondaryProgress(state), max(state));
+        } while (!mState.compareAndSet(state, newState));
+        refreshProgress(android.R.id.progress, newState, fromUser);
     }
 
     /**
@@ -325,19 +438,22 @@ public class VerticalProgressBar extends View {
      * @see #getSecondaryProgress()
      * @see #incrementSecondaryProgressBy(int)
      */
-    public synchronized void setSecondaryProgress(int secondaryProgress) {
+    public void setSecondaryProgress(int secondaryProgress) {
         if (secondaryProgress < 0) {
             secondaryProgress = 0;
         }
 
-        if (secondaryProgress > mMax) {
-            secondaryProgress = mMax;
-        }
-
-        if (secondaryProgress != mSecondaryProgress) {
-            mSecondaryProgress = secondaryProgress;
-            refreshProgress(android.R.id.secondaryProgress, mSecondaryProgress, false);
-        }
+        long state;
+        long newState;
+        do {
+            state = mState.get();
+            int p = Math.min(secondaryProgress, max(state));
+            if (p == secondaryProgress(state)) {
+                return;
+            }
+            newState = pack(progress(state), p, max(state));
+        } while (!mState.compareAndSet(state, newState));
+        refreshProgress(android.R.id.secondaryProgress, newState, false);
     }
 
     /**
@@ -350,8 +466,8 @@ public class VerticalProgressBar extends View {
      * @see #getMax()
      */
     @ViewDebug.ExportedProperty
-    public synchronized int getProgress() {
-        return mProgress;
+    public int getProgress() {
+        return progress(mState.get());
     }
 
     /**
@@ -364,8 +480,8 @@ public class VerticalProgressBar extends View {
      * @see #getMax()
      */
     @ViewDebug.ExportedProperty
-    public synchronized int getSecondaryProgress() {
-        return mSecondaryProgress;
+    public int getSecondaryProgress() {
+        return secondaryProgress(mState.get());
     }
 
     /**
@@ -378,31 +494,39 @@ public class VerticalProgressBar extends View {
      * @see #getSecondaryProgress()
      */
     @ViewDebug.ExportedProperty
-    public synchronized int getMax() {
-        return mMax;
+    public int getMax() {
+        return max(mState.get());
     }
 
     /**
      * <p>Set the range of the progress bar to 0...<tt>max</tt>.</p>
      *
-     * @param max the upper range of this progress bar
+     * @param max the upper range of this progress bar, at most {@link #MAX_VALUE}
      *
      * @see #getMax()
      * @see #setProgress(int)
      * @see #setSecondaryProgress(int)
      */
-    public synchronized void setMax(int max) {
+    public void setMax(int max) {
         if (max < 0) {
             max = 0;
         }
-        if (max != mMax) {
-            mMax = max;
-            postInvalidate();
-
-            if (mProgress > max) {
-                mProgress = max;
-                refreshProgress(android.R.id.progress, mProgress, false);
+        if (max > MAX_VALUE) {
+            max = MAX_VALUE;
+        }
+        long state;
+        long newState;
+        do {
+            state = mState.get();
+            if (max == max(state)) {
+                return;
             }
+            newState = pack(Math.min(progress(state), max), secondaryProgress(state), max);
+        } while (!mState.compareAndSet(state, newState));
+        postInvalidate();
+
+        if (progress(newState) != progress(state)) {
+            refreshProgress(android.R.id.progress, newState, false);
         }
     }
 
@@ -413,8 +537,8 @@ public class VerticalProgressBar extends View {
      *
      * @see #setProgress(int)
      */
-    public synchronized final void incrementProgressBy(int diff) {
-        setProgress(mProgress + diff);
+    public final void incrementProgressBy(int diff) {
+        setProgress(getProgress() + diff);
     }
 
     /**
@@ -424,8 +548,8 @@ public class VerticalProgressBar extends View {
      *
      * @see #setSecondaryProgress(int)
      */
-    public synchronized final void incrementSecondaryProgressBy(int diff) {
-        setSecondaryProgress(mSecondaryProgress + diff);
+    public final void incrementSecondaryProgressBy(int diff) {
+        setSecondaryProgress(getSecondaryProgress() + diff);
     }
 
     @Override
@@ -437,7 +561,7 @@ public class VerticalProgressBar extends View {
 
     @Override
     public void invalidateDrawable(Drawable dr) {
-        if (!mInDrawing) {
+        if (!mInDrawing && !mInLevelChange) {
             if (verifyDrawable(dr)) {
                 final Rect dirty = dr.getBounds();
                 final int scrollX = mScrollX + mPaddingLeft;
@@ -463,7 +587,7 @@ public class VerticalProgressBar extends View {
     }
 
     @Override
-    protected synchronized void onDraw(Canvas canvas) {
+    protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
         Drawable d = mCurrentDrawable;
@@ -478,7 +602,7 @@ public class VerticalProgressBar extends View {
     }
 
     @Override
-    protected synchronized void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         Drawable d = mCurrentDrawable;
 
         int dw = 0;
@@ -550,8 +674,9 @@ public class VerticalProgressBar extends View {
         Parcelable superState = super.onSaveInstanceState();
         SavedState ss = new SavedState(superState);
 
-        ss.progress = mProgress;
-        ss.secondaryProgress = mSecondaryProgress;
+        long state = mState.get();
+        ss.progress = progress(state);
+        ss.secondaryProgress = secondaryProgress(state);
 
         return ss;
     }
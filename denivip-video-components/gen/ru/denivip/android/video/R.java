@@ -57,6 +57,7 @@ public final class R {
         public static final int pause=0x7f060002;
         public static final int relativeLayout=0x7f060001;
         public static final int rightButtons=0x7f060007;
+        public static final int scrub_preview=0x7f06000d;
         public static final int videoContainer=0x7f060000;
         public static final int volume=0x7f060006;
         public static final int volumeBar=0x7f060009;
@@ -0,0 +1,54 @@
+package ru.denivip.android.video;
+
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+
+/**
+ * A few mutable bitmaps that are no longer shown, kept so that the next
+ * bitmap of the same size and config can be drawn into one of them instead
+ * of allocating new pixels.
+ */
+final class BitmapPool {
+    private final ArrayList<Bitmap> mBitmaps = new ArrayList<Bitmap>();
+    private final int mMaxSize;
+
+    BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @return A mutable bitmap with undefined content, taken from the pool if
+     * one matches.
+     */
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        for (int i = mBitmaps.size() - 1; i >= 0; i--) {
+            Bitmap b = mBitmaps.get(i);
+            if (b.getWidth() == width && b.getHeight() == height && b.getConfig() == config) {
+                mBitmaps.remove(i);
+                return b;
+            }
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Hand a bitmap back. Nothing may draw it afterwards.
+     */
+    synchronized void put(Bitmap b) {
+        if (b.isRecycled() || !b.isMutable()) {
+            return;
+        }
+        if (mBitmaps.size() >= mMaxSize) {
+            mBitmaps.remove(0).recycle();
+        }
+        mBitmaps.add(b);
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < mBitmaps.size(); i++) {
+            mBitmaps.get(i).recycle();
+        }
+        mBitmaps.clear();
+    }
+}
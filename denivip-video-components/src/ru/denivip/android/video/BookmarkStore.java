@@ -0,0 +1,287 @@
+package ru.denivip.android.video;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Remembers the playback position of many titles, so that {@link VideoView}
+ * can continue each of them where the user left off.
+ * <p>
+ * Positions are looked up in an in-memory hash table keyed by a 64-bit hash
+ * of the URI, so reads are O(1) and never touch the disk. Every change is
+ * appended as a fixed-size record to a log file on a background thread; the
+ * log is rewritten with only the live entries once it has grown to several
+ * times their number. The log is read back in the background when the store
+ * is created, and positions set in the meantime take precedence over it.
+ */
+public class BookmarkStore {
+    private static final String TAG = "BookmarkStore";
+
+    private static final int RECORD_SIZE = 12;  // long key, int position
+    private static final int MIN_RECORDS_TO_COMPACT = 1024;
+
+    private final File mFile;
+    private final LongIntMap mIndex = new LongIntMap();  // guarded by mIndex
+
+    // used on the IoThread only
+    private DataOutputStream mLog;
+    private int mLogRecords;
+
+    /**
+     * @param context The context whose files directory holds the log.
+     * @param name The name of the log file.
+     */
+    public BookmarkStore(Context context, String name) {
+        mFile = new File(context.getFilesDir(), name);
+        IoThread.post(new Runnable() {
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * @return The position saved for the URI in milliseconds, or 0 if there
+     * is none.
+     */
+    public int get(Uri uri) {
+        long key = hash(uri.toString());
+        synchronized (mIndex) {
+            return mIndex.get(key);
+        }
+    }
+
+    /**
+     * Save the position for the URI. A position of 0 removes the bookmark.
+     */
+    public void put(Uri uri, final int position) {
+        final long key = hash(uri.toString());
+        synchronized (mIndex) {
+            // a 0 is stored even for an unknown key, so that a removal made
+            // before load() finished wins over the bookmark on disk
+            if (mIndex.contains(key) && mIndex.get(key) == position) {
+                return;
+            }
+            mIndex.put(key, position);
+        }
+        IoThread.post(new Runnable() {
+            public void run() {
+                append(key, position);
+            }
+        });
+    }
+
+    public void remove(Uri uri) {
+        put(uri, 0);
+    }
+
+    private void load() {
+        LongIntMap loaded = new LongIntMap();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            long records = mFile.length() / RECORD_SIZE;
+            for (long i = 0; i < records; i++) {
+                loaded.put(in.readLong(), in.readInt());
+            }
+            mLogRecords = (int) records;
+        } catch (FileNotFoundException ex) {
+            // nothing saved yet
+        } catch (EOFException ex) {
+            // a record was cut short, keep what was read
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to read " + mFile, ex);
+        } finally {
+            closeQuietly(in);
+        }
+
+        synchronized (mIndex) {
+            long[] keys = loaded.mKeys;
+            int[] values = loaded.mValues;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != LongIntMap.EMPTY && !mIndex.contains(keys[i])) {
+                    mIndex.put(keys[i], values[i]);
+                }
+            }
+        }
+        if (mFile.length() % RECORD_SIZE != 0) {
+            // drop the torn record before anything is appended after it
+            compact();
+        }
+    }
+
+    private void append(long key, int position) {
+        try {
+            if (mLog == null) {
+                mLog = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(mFile, true), RECORD_SIZE));
+            }
+            mLog.writeLong(key);
+            mLog.writeInt(position);
+            mLog.flush();
+            mLogRecords++;
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to write " + mFile, ex);
+            closeLog();
+            return;
+        }
+
+        int live;
+        synchronized (mIndex) {
+            live = mIndex.size();
+        }
+        if (mLogRecords >= MIN_RECORDS_TO_COMPACT && mLogRecords > 2 * live) {
+            compact();
+        }
+    }
+
+    /*
+     * Rewrite the log with one record per live bookmark. Runs on the IoThread,
+     * so every put() made after the index is copied here is appended to the
+     * new log afterwards.
+     */
+    private void compact() {
+        long[] keys;
+        int[] values;
+        synchronized (mIndex) {
+            keys = mIndex.mKeys.clone();
+            values = mIndex.mValues.clone();
+        }
+        closeLog();
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        int written = 0;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != LongIntMap.EMPTY && values[i] != 0) {
+                    out.writeLong(keys[i]);
+                    out.writeInt(values[i]);
+                    written++;
+                }
+            }
+            out.close();
+            out = null;
+            if (tmp.renameTo(mFile)) {
+                mLogRecords = written;
+            } else {
+                Log.w(TAG, "Unable to replace " + mFile);
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to compact " + mFile, ex);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private void closeLog() {
+        closeQuietly(mLog);
+        mLog = null;
+    }
+
+    private static void closeQuietly(java.io.Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException ex) {
+                // nothing to do
+            }
+        }
+    }
+
+    /*
+     * 64-bit FNV-1a. With a few thousand titles a collision is practically
+     * impossible, which lets the index keep no strings at all.
+     */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h == LongIntMap.EMPTY ? 1 : h;
+    }
+
+    /**
+     * Open-addressing hash table from long keys to int values, without
+     * boxing. Keys are never removed; a value of 0 stands for no value.
+     */
+    static final class LongIntMap {
+        static final long EMPTY = 0;
+
+        long[] mKeys = new long[64];
+        int[] mValues = new int[64];
+        private int mSize;  // keys in use, including those mapped to 0
+        private int mLive;  // keys mapped to a non-zero value
+
+        int get(long key) {
+            int i = indexOf(key);
+            return mKeys[i] == key ? mValues[i] : 0;
+        }
+
+        boolean contains(long key) {
+            return mKeys[indexOf(key)] == key;
+        }
+
+        void put(long key, int value) {
+            int i = indexOf(key);
+            if (mKeys[i] != key) {
+                if ((mSize + 1) * 2 > mKeys.length) {
+                    grow();
+                    i = indexOf(key);
+                }
+                mKeys[i] = key;
+                mValues[i] = 0;
+                mSize++;
+            }
+            if (mValues[i] == 0 && value != 0) {
+                mLive++;
+            } else if (mValues[i] != 0 && value == 0) {
+                mLive--;
+            }
+            mValues[i] = value;
+        }
+
+        /**
+         * @return The number of keys mapped to a non-zero value.
+         */
+        int size() {
+            return mLive;
+        }
+
+        private int indexOf(long key) {
+            int mask = mKeys.length - 1;
+            int i = (int) (key ^ (key >>> 32)) & mask;
+            while (mKeys[i] != EMPTY && mKeys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private void grow() {
+            long[] keys = mKeys;
+            int[] values = mValues;
+            mKeys = new long[keys.length * 2];
+            mValues = new int[keys.length * 2];
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY) {
+                    mKeys[indexOf(keys[i])] = keys[i];
+                    mValues[indexOf(keys[i])] = values[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package ru.denivip.android.video;
+
+/**
+ * The parts of a video that are already buffered, as disjoint time ranges in
+ * milliseconds.
+ * <p>
+ * MediaPlayer only reports how far buffering has got as a percentage of the
+ * duration. After a seek out of the buffered data it starts buffering at the
+ * new position, so the ranges are rebuilt from the seeks and the buffering
+ * updates: a seek to an unbuffered position opens a new range, and the
+ * following updates extend it. Ranges that touch are merged.
+ */
+final class BufferedRanges {
+    private static final int MAX_RANGES = 16;
+
+    // sorted by start, never overlapping
+    private final int[] mStarts = new int[MAX_RANGES];
+    private final int[] mEnds = new int[MAX_RANGES];
+    private int mCount;
+    private int mActive = -1;  // the range being buffered into
+
+    void clear() {
+        mCount = 0;
+        mActive = -1;
+    }
+
+    /**
+     * The whole video is local, e.g. a file.
+     */
+    void setAll(int duration) {
+        mStarts[0] = 0;
+        mEnds[0] = duration;
+        mCount = 1;
+        mActive = 0;
+    }
+
+    /**
+     * Buffering continues from the position the player seeks to.
+     */
+    void onSeek(int position) {
+        int i = indexOf(position);
+        if (i >= 0) {
+            mActive = i;
+            return;
+        }
+        mActive = insert(position);
+    }
+
+    void onBufferingUpdate(int percent, int duration) {
+        if (duration <= 0) {
+            return;
+        }
+        if (mActive < 0) {
+            mActive = insert(0);
+        }
+        int end = (int) ((long) duration * percent / 100);
+        if (end <= mEnds[mActive]) {
+            return;
+        }
+        mEnds[mActive] = end;
+        // swallow the ranges the active one has grown into
+        int next = mActive + 1;
+        while (next < mCount && mStarts[next] <= end) {
+            mEnds[mActive] = Math.max(end, mEnds[next]);
+            remove(next);
+        }
+    }
+
+    /**
+     * @return Whether the position is buffered, so that a seek to it can be
+     * served without waiting for the network.
+     */
+    boolean isBuffered(int position) {
+        return indexOf(position) >= 0;
+    }
+
+    /**
+     * Copy the ranges as start, end pairs.
+     *
+     * @return The number of ranges copied.
+     */
+    int get(int[] out) {
+        int count = Math.min(mCount, out.length / 2);
+        for (int i = 0; i < count; i++) {
+            out[2 * i] = mStarts[i];
+            out[2 * i + 1] = mEnds[i];
+        }
+        return count;
+    }
+
+    private int indexOf(int position) {
+        for (int i = 0; i < mCount; i++) {
+            if (position >= mStarts[i] && position <= mEnds[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int insert(int position) {
+        if (mCount == MAX_RANGES) {
+            // merge the two ranges closest to each other to make room
+            int closest = 0;
+            for (int i = 1; i < mCount - 1; i++) {
+                if (mStarts[i + 1] - mEnds[i] < mStarts[closest + 1] - mEnds[closest]) {
+                    closest = i;
+                }
+            }
+            mEnds[closest] = mEnds[closest + 1];
+            remove(closest + 1);
+        }
+        int i = mCount;
+        while (i > 0 && mStarts[i - 1] > position) {
+            mStarts[i] = mStarts[i - 1];
+            mEnds[i] = mEnds[i - 1];
+            i--;
+        }
+        mStarts[i] = position;
+        mEnds[i] = position;
+        mCount++;
+        return i;
+    }
+
+    private void remove(int index) {
+        System.arraycopy(mStarts, index + 1, mStarts, index, mCount - index - 1);
+        System.arraycopy(mEnds, index + 1, mEnds, index, mCount - index - 1);
+        mCount--;
+        if (mActive > index) {
+            mActive--;
+        } else if (mActive == index) {
+            mActive = -1;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package ru.denivip.android.video;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Draws the buffered ranges of a video on a progress bar, in place of the
+ * single secondary progress. Each range is a slice of the wrapped drawable.
+ */
+final class BufferedRangesDrawable extends Drawable {
+    private final Drawable mDrawable;
+    private int[] mRanges = new int[0];
+    private int mCount;
+    private int mDuration;
+
+    BufferedRangesDrawable(Drawable drawable) {
+        mDrawable = drawable;
+    }
+
+    /**
+     * @param ranges Start, end pairs in milliseconds. The array is copied.
+     * @param count The number of pairs.
+     */
+    void setRanges(int[] ranges, int count, int duration) {
+        if (count == mCount && duration == mDuration && equals(ranges, mRanges, count)) {
+            return;
+        }
+        if (mRanges.length < ranges.length) {
+            mRanges = new int[ranges.length];
+        }
+        System.arraycopy(ranges, 0, mRanges, 0, 2 * count);
+        mCount = count;
+        mDuration = duration;
+        invalidateSelf();
+    }
+
+    private static boolean equals(int[] a, int[] b, int count) {
+        if (b.length < 2 * count) {
+            return false;
+        }
+        for (int i = 0; i < 2 * count; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected void onBoundsChange(Rect bounds) {
+        mDrawable.setBounds(bounds);
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        if (mDuration <= 0) {
+            return;
+        }
+        Rect bounds = getBounds();
+        int width = bounds.width();
+        for (int i = 0; i < mCount; i++) {
+            int left = bounds.left + (int) ((long) width * mRanges[2 * i] / mDuration);
+            int right = bounds.left + (int) ((long) width * mRanges[2 * i + 1] / mDuration);
+            if (right <= left) {
+                continue;
+            }
+            canvas.save();
+            canvas.clipRect(left, bounds.top, right, bounds.bottom);
+            mDrawable.draw(canvas);
+            canvas.restore();
+        }
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        mDrawable.setAlpha(alpha);
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter cf) {
+        mDrawable.setColorFilter(cf);
+    }
+
+    @Override
+    public int getOpacity() {
+        return mDrawable.getOpacity();
+    }
+}
@@ -0,0 +1,313 @@
+package ru.denivip.android.video;
+
+import java.util.ArrayList;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Process-wide bookkeeping of the hardware decoders used by VideoViews.
+ * <p>
+ * Devices run only a few decoders at once, and a player opened beyond that
+ * fails with an unspecific error. Every VideoView therefore takes a slot
+ * before it opens a player and gives it back when the player is released
+ * or suspended. The number of slots is the decoder budget of the
+ * {@link MediaPlayerPool}.
+ * <p>
+ * When all slots are taken, the governor reclaims the slot of the holder
+ * with the lowest priority below the requester's, which suspends its player.
+ * Playing views are never reclaimed. If no slot can be reclaimed, the
+ * requester waits and is called back once a slot is free, the one with the
+ * highest priority first.
+ */
+public class DecoderGovernor {
+    private static final String TAG = "DecoderGovernor";
+
+    /** Neither playing nor on screen. */
+    public static final int PRIORITY_BACKGROUND = 0;
+    /** On screen but not playing. */
+    public static final int PRIORITY_VISIBLE = 1;
+    /** Playing or about to play. */
+    public static final int PRIORITY_PLAYING = 2;
+
+    private static DecoderGovernor sInstance;
+
+    /**
+     * A user of a decoder slot. The methods are called on the UI thread.
+     */
+    interface Client {
+        /**
+         * @return One of the PRIORITY_* constants, at the time of the call.
+         */
+        int getDecoderPriority();
+
+        /**
+         * Give the slot back, e.g. by suspending the player. The client calls
+         * {@link DecoderGovernor#release} when it does.
+         *
+         * @return Whether the slot was given back.
+         */
+        boolean reclaimDecoder();
+
+        /**
+         * A slot the client waited for was assigned to it.
+         */
+        void onDecoderGranted();
+    }
+
+    private final ArrayList<Client> mHolders = new ArrayList<Client>();
+    private final ArrayList<Client> mWaiting = new ArrayList<Client>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private boolean mReclaiming;
+
+    private int mGrants;
+    private int mWaits;
+    private int mReclaims;
+    private int mPeakHolders;
+
+    public static synchronized DecoderGovernor getInstance() {
+        if (sInstance == null) {
+            sInstance = new DecoderGovernor();
+        }
+        return sInstance;
+    }
+
+    DecoderGovernor() {
+    }
+
+    /**
+     * @return The number of decoders that may be in use at once.
+     */
+    public int getSlotCount() {
+        return Math.max(1, MediaPlayerPool.getInstance().getDecoderBudget());
+    }
+
+    /**
+     * Take a slot, reclaiming one from a lower priority holder if needed.
+     *
+     * @return Whether the client holds a slot now. If not, it waits and
+     * {@link Client#onDecoderGranted()} is called later.
+     */
+    boolean acquire(Client client) {
+        int priority = client.getDecoderPriority();
+        // a reclaimed holder may refuse or hold on, don't loop forever
+        for (int attempt = 0; attempt <= getSlotCount(); attempt++) {
+            Client victim;
+            synchronized (this) {
+                if (mHolders.contains(client)) {
+                    return true;
+                }
+                if (mHolders.size() < getSlotCount()) {
+                    mWaiting.remove(client);
+                    holdLocked(client);
+                    return true;
+                }
+                victim = findVictimLocked(priority);
+                if (victim == null) {
+                    if (!mWaiting.contains(client)) {
+                        mWaiting.add(client);
+                        mWaits++;
+                    }
+                    return false;
+                }
+            }
+            // outside the lock, the victim calls release(), and the slot is
+            // kept for this client rather than granted to a waiting one
+            boolean reclaimed;
+            mReclaiming = true;
+            try {
+                reclaimed = victim.reclaimDecoder();
+            } finally {
+                mReclaiming = false;
+            }
+            if (reclaimed) {
+                synchronized (this) {
+                    mReclaims++;
+                }
+            } else {
+                // keep it from being picked again
+                priority = Math.min(priority, victim.getDecoderPriority());
+            }
+        }
+        synchronized (this) {
+            if (!mWaiting.contains(client)) {
+                mWaiting.add(client);
+                mWaits++;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take a slot only if one is free, without reclaiming or waiting. Meant
+     * for work that can be skipped, such as preparing ahead.
+     *
+     * @return Whether the client holds a slot now.
+     */
+    synchronized boolean tryAcquire(Client client) {
+        if (mHolders.contains(client)) {
+            return true;
+        }
+        if (mHolders.size() >= getSlotCount()) {
+            return false;
+        }
+        mWaiting.remove(client);
+        holdLocked(client);
+        return true;
+    }
+
+    /**
+     * @return Whether the client waits for a slot.
+     */
+    synchronized boolean isWaiting(Client client) {
+        return mWaiting.contains(client);
+    }
+
+    /**
+     * Account for a decoder the client already uses, e.g. a playback moved
+     * over from another view. Never waits, so the slots may be exceeded
+     * until a holder releases.
+     */
+    synchronized void hold(Client client) {
+        mWaiting.remove(client);
+        if (!mHolders.contains(client)) {
+            holdLocked(client);
+        }
+    }
+
+    /**
+     * Give back the slot of the client, or stop waiting for one.
+     */
+    void release(Client client) {
+        synchronized (this) {
+            mWaiting.remove(client);
+            if (!mHolders.remove(client)) {
+                return;
+            }
+        }
+        grantWaiting();
+    }
+
+    /**
+     * Give back a granted slot the client can't use yet, e.g. because it has
+     * no surface, and keep waiting. The slot goes to another waiting client,
+     * and the client takes one with {@link #acquire} once it can use it, or
+     * is called back again on the next free slot.
+     */
+    void requeue(Client client) {
+        synchronized (this) {
+            if (!mHolders.remove(client)) {
+                return;
+            }
+        }
+        // not waiting yet, so the slot isn't granted right back
+        grantWaiting();
+        synchronized (this) {
+            if (!mHolders.contains(client) && !mWaiting.contains(client)) {
+                mWaiting.add(client);
+            }
+        }
+    }
+
+    private void grantWaiting() {
+        final Client next;
+        synchronized (this) {
+            if (mReclaiming || mWaiting.isEmpty() || mHolders.size() >= getSlotCount()) {
+                return;
+            }
+            Client best = null;
+            int bestPriority = Integer.MIN_VALUE;
+            for (int i = 0; i < mWaiting.size(); i++) {
+                Client c = mWaiting.get(i);
+                int p = c.getDecoderPriority();
+                if (p > bestPriority) {
+                    best = c;
+                    bestPriority = p;
+                }
+            }
+            next = best;
+            mWaiting.remove(next);
+            holdLocked(next);
+        }
+        // not from within the release() of another client
+        mHandler.post(new Runnable() {
+            public void run() {
+                next.onDecoderGranted();
+            }
+        });
+    }
+
+    private void holdLocked(Client client) {
+        mHolders.add(client);
+        mGrants++;
+        mPeakHolders = Math.max(mPeakHolders, mHolders.size());
+    }
+
+    /*
+     * The holder with the lowest priority below the given one, the longest
+     * holding of them if several.
+     */
+    private Client findVictimLocked(int priority) {
+        Client victim = null;
+        int lowest = priority;
+        for (int i = 0; i < mHolders.size(); i++) {
+            Client c = mHolders.get(i);
+            int p = c.getDecoderPriority();
+            if (p < lowest && p < PRIORITY_PLAYING) {
+                victim = c;
+                lowest = p;
+            }
+        }
+        return victim;
+    }
+
+    public synchronized int getHolderCount() {
+        return mHolders.size();
+    }
+
+    public synchronized int getWaitingCount() {
+        return mWaiting.size();
+    }
+
+    /**
+     * @return The most slots held at once since the process started.
+     */
+    public synchronized int getPeakHolderCount() {
+        return mPeakHolders;
+    }
+
+    public synchronized int getGrantCount() {
+        return mGrants;
+    }
+
+    /**
+     * @return How often a view had to wait for a slot.
+     */
+    public synchronized int getWaitCount() {
+        return mWaits;
+    }
+
+    /**
+     * @return How often a slot was taken from a lower priority view.
+     */
+    public synchronized int getReclaimCount() {
+        return mReclaims;
+    }
+
+    public void logStatistics() {
+        Log.d(TAG, toString());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DecoderGovernor{slots=" + getSlotCount()
+                + " held=" + mHolders.size()
+                + " waiting=" + mWaiting.size()
+                + " peak=" + mPeakHolders
+                + " grants=" + mGrants
+                + " waits=" + mWaits
+                + " reclaims=" + mReclaims + "}";
+    }
+}
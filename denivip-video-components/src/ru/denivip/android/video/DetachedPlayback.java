@@ -0,0 +1,142 @@
+package ru.denivip.android.video;
+
+import android.media.MediaPlayer;
+import android.media.MediaPlayer.OnCompletionListener;
+import android.media.MediaPlayer.OnErrorListener;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * A live player taken off one {@link VideoView} with
+ * {@link VideoView#detachPlayback()} and not yet attached to another one.
+ * <p>
+ * The player keeps its data source, position and buffers. While detached it
+ * has no display, and the events it reports are recorded here so that the
+ * VideoView it is attached to next continues from the right state.
+ * A playback that is never attached must be {@link #release() released}.
+ * <p>
+ * Before Ice Cream Sandwich a running player can't be moved to another
+ * display. There the playback carries no player, only the URI and the
+ * position, and the VideoView it is attached to opens the video again.
+ * <p>
+ * A detached playback references no view, so it can be returned from
+ * {@link android.app.Activity#onRetainNonConfigurationInstance()} to keep
+ * playing through a configuration change, as long as the listeners set on
+ * the VideoView don't reference the old activity either.
+ */
+public final class DetachedPlayback {
+    private static final String TAG = "DetachedPlayback";
+
+    MediaPlayer mPlayer;
+    Uri         mUri;
+    int         mCurrentState;
+    int         mTargetState;
+    int         mDuration;
+    int         mVideoWidth;
+    int         mVideoHeight;
+    int         mBufferPercentage;
+    int         mSeekWhenPrepared;
+    boolean     mCanPause;
+    boolean     mCanSeekBack;
+    boolean     mCanSeekForward;
+    MediaPlayer.OnPreparedListener mOnPreparedListener;
+    OnCompletionListener mOnCompletionListener;
+    OnErrorListener mOnErrorListener;
+    long        mDetachTime;
+    // no player, the video is opened again at mSeekWhenPrepared
+    boolean     mReopen;
+
+    // events that happened while detached, replayed on attach
+    boolean     mPreparedWhileDetached;
+    boolean     mCompletedWhileDetached;
+    int         mErrorWhat;
+    int         mErrorExtra;
+
+    DetachedPlayback() {
+    }
+
+    /*
+     * Route the player's events here until it is attached again.
+     */
+    void park() {
+        mPlayer.setOnPreparedListener(mPreparedListener);
+        mPlayer.setOnVideoSizeChangedListener(mSizeChangedListener);
+        mPlayer.setOnCompletionListener(mCompletionListener);
+        mPlayer.setOnErrorListener(mErrorListener);
+        mPlayer.setOnBufferingUpdateListener(mBufferingUpdateListener);
+    }
+
+    /**
+     * @return The URI of the media being played.
+     */
+    public Uri getUri() {
+        return mUri;
+    }
+
+    /**
+     * @return Whether the player can still be attached to a VideoView.
+     */
+    public boolean isValid() {
+        return mPlayer != null || mReopen;
+    }
+
+    /**
+     * Release the player. Does nothing if it has already been attached to a
+     * VideoView.
+     */
+    public void release() {
+        if (mPlayer != null) {
+            if (mCurrentState == VideoView.STATE_ERROR) {
+                MediaPlayerPool.getInstance().discard(mPlayer);
+            } else {
+                MediaPlayerPool.getInstance().recycle(mPlayer);
+            }
+            mPlayer = null;
+        }
+        mReopen = false;
+    }
+
+    private MediaPlayer.OnPreparedListener mPreparedListener =
+        new MediaPlayer.OnPreparedListener() {
+        public void onPrepared(MediaPlayer mp) {
+            mCurrentState = VideoView.STATE_PREPARED;
+            mPreparedWhileDetached = true;
+            mVideoWidth = mp.getVideoWidth();
+            mVideoHeight = mp.getVideoHeight();
+        }
+    };
+
+    private MediaPlayer.OnVideoSizeChangedListener mSizeChangedListener =
+        new MediaPlayer.OnVideoSizeChangedListener() {
+        public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
+            mVideoWidth = mp.getVideoWidth();
+            mVideoHeight = mp.getVideoHeight();
+        }
+    };
+
+    private OnCompletionListener mCompletionListener = new OnCompletionListener() {
+        public void onCompletion(MediaPlayer mp) {
+            mCurrentState = VideoView.STATE_PLAYBACK_COMPLETED;
+            mTargetState = VideoView.STATE_PLAYBACK_COMPLETED;
+            mCompletedWhileDetached = true;
+        }
+    };
+
+    private OnErrorListener mErrorListener = new OnErrorListener() {
+        public boolean onError(MediaPlayer mp, int framework_err, int impl_err) {
+            Log.d(TAG, "Error: " + framework_err + "," + impl_err);
+            mCurrentState = VideoView.STATE_ERROR;
+            mTargetState = VideoView.STATE_ERROR;
+            mErrorWhat = framework_err;
+            mErrorExtra = impl_err;
+            return true;
+        }
+    };
+
+    private MediaPlayer.OnBufferingUpdateListener mBufferingUpdateListener =
+        new MediaPlayer.OnBufferingUpdateListener() {
+        public void onBufferingUpdate(MediaPlayer mp, int percent) {
+            mBufferPercentage = percent;
+        }
+    };
+}
@@ -0,0 +1,290 @@
+package ru.denivip.android.video;
+
+import java.util.ArrayList;
+
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+/**
+ * Decides which {@link VideoView}s of a scrolling feed have a player.
+ * <p>
+ * On every scroll or layout of the feed, at most once a frame, the scheduler
+ * measures how much of each view is visible. The most visible views play,
+ * see {@link #setMaxPlaying(int)}. The views within
+ * {@link #setPreloadDistance(int)} of the visible part of the feed are
+ * prepared and paused, so they start at once when scrolled to, and the views
+ * further away are unloaded. The views open their player only when told to,
+ * so a feed full of views doesn't open a player for each of them. The same
+ * decision sets the priority of each view for the {@link DecoderGovernor},
+ * so prepared views off screen give their decoder up first, and get it back
+ * once one is free again.
+ * <p>
+ * The scheduler is used on the UI thread only. Updating it allocates
+ * nothing.
+ */
+public class FeedPlaybackScheduler {
+    /**
+     * The part of a view that has to be visible for it to play.
+     */
+    public static final float MIN_PLAY_FRACTION = 0.5f;
+
+    private static final int ACTION_UNLOAD = 0;
+    private static final int ACTION_PRELOAD = 1;
+    private static final int ACTION_PLAY = 2;
+
+    private final View mFeed;
+    private final ArrayList<VideoView> mViews = new ArrayList<VideoView>();
+    private float[] mFractions = new float[8];
+    private int[] mDistances = new int[8];
+    private int[] mActions = new int[8];
+    private int mMaxPlaying = 1;
+    private int mPreloadDistance = -1;
+    private boolean mUpdatePending;
+    private boolean mStarted;
+
+    // reused by every update
+    private final Rect mRect = new Rect();
+    private final int[] mLocation = new int[2];
+
+    /**
+     * @param feed The scrolling view that contains the video views.
+     */
+    public FeedPlaybackScheduler(View feed) {
+        mFeed = feed;
+    }
+
+    /**
+     * Start following the scrolling of the feed.
+     */
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        ViewTreeObserver observer = mFeed.getViewTreeObserver();
+        observer.addOnScrollChangedListener(mScrollListener);
+        observer.addOnGlobalLayoutListener(mLayoutListener);
+        scheduleUpdate();
+    }
+
+    /**
+     * Stop following the feed and unload every view, e.g. when the activity
+     * is paused.
+     */
+    public void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        ViewTreeObserver observer = mFeed.getViewTreeObserver();
+        observer.removeOnScrollChangedListener(mScrollListener);
+        observer.removeGlobalOnLayoutListener(mLayoutListener);
+        mFeed.removeCallbacks(mUpdate);
+        mUpdatePending = false;
+        for (int i = 0; i < mViews.size(); i++) {
+            mViews.get(i).setScheduledPriority(DecoderGovernor.PRIORITY_BACKGROUND);
+            mViews.get(i).unload();
+            mActions[i] = ACTION_UNLOAD;
+        }
+    }
+
+    /**
+     * Let the scheduler decide when the view plays. The view gets a player
+     * only when the scheduler asks for it, see
+     * {@link VideoView#setDeferredOpen(boolean)}.
+     */
+    public void add(VideoView view) {
+        if (mViews.contains(view)) {
+            return;
+        }
+        view.setDeferredOpen(true);
+        int n = mViews.size();
+        if (n == mActions.length) {
+            mFractions = grow(mFractions);
+            mDistances = grow(mDistances);
+            mActions = grow(mActions);
+        }
+        mViews.add(view);
+        mActions[n] = ACTION_UNLOAD;
+        scheduleUpdate();
+    }
+
+    /**
+     * Hand the view back. It keeps its current player, if any, and opens
+     * players by itself again. A view without a player doesn't get one until
+     * its next {@link VideoView#start()} or {@link VideoView#preload()}.
+     */
+    public void remove(VideoView view) {
+        int index = mViews.indexOf(view);
+        if (index < 0) {
+            return;
+        }
+        mViews.remove(index);
+        int n = mViews.size();
+        System.arraycopy(mActions, index + 1, mActions, index, n - index);
+        view.setScheduledPriority(-1);
+        view.endDeferredOpen();
+        scheduleUpdate();
+    }
+
+    /**
+     * @param count How many of the most visible views play at a time, 1 by
+     * default.
+     */
+    public void setMaxPlaying(int count) {
+        mMaxPlaying = Math.max(0, count);
+        scheduleUpdate();
+    }
+
+    /**
+     * @param distance How far off the visible part of the feed, in pixels, a
+     * view is still prepared. The height of the feed by default.
+     */
+    public void setPreloadDistance(int distance) {
+        mPreloadDistance = distance;
+        scheduleUpdate();
+    }
+
+    private static float[] grow(float[] a) {
+        float[] b = new float[a.length * 2];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private static int[] grow(int[] a) {
+        int[] b = new int[a.length * 2];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private void scheduleUpdate() {
+        if (!mStarted || mUpdatePending) {
+            return;
+        }
+        mUpdatePending = true;
+        // scroll events come several times a frame, update on the next one
+        long now = SystemClock.uptimeMillis();
+        mFeed.postDelayed(mUpdate,
+                ProgressTicker.FRAME_INTERVAL - now % ProgressTicker.FRAME_INTERVAL);
+    }
+
+    private void update() {
+        mFeed.getLocationOnScreen(mLocation);
+        int feedLeft = mLocation[0];
+        int feedTop = mLocation[1];
+        int feedRight = feedLeft + mFeed.getWidth();
+        int feedBottom = feedTop + mFeed.getHeight();
+        int preloadDistance = mPreloadDistance >= 0 ? mPreloadDistance : mFeed.getHeight();
+
+        int n = mViews.size();
+        for (int i = 0; i < n; i++) {
+            measure(mViews.get(i), i, feedLeft, feedTop, feedRight, feedBottom);
+        }
+
+        // the most visible views play, the rest is prepared or released
+        int playing = 0;
+        for (int i = 0; i < n; i++) {
+            boolean play = false;
+            if (mFractions[i] >= MIN_PLAY_FRACTION) {
+                int better = 0;
+                for (int j = 0; j < n; j++) {
+                    if (mFractions[j] > mFractions[i] || (mFractions[j] == mFractions[i] && j < i)) {
+                        better++;
+                    }
+                }
+                play = better < mMaxPlaying && playing < mMaxPlaying;
+            }
+            int action;
+            if (play) {
+                action = ACTION_PLAY;
+                playing++;
+            } else if (mDistances[i] <= preloadDistance) {
+                action = ACTION_PRELOAD;
+            } else {
+                action = ACTION_UNLOAD;
+            }
+            VideoView view = mViews.get(i);
+            view.setScheduledPriority(action == ACTION_PLAY ? DecoderGovernor.PRIORITY_PLAYING
+                    : mFractions[i] > 0 ? DecoderGovernor.PRIORITY_VISIBLE
+                    : DecoderGovernor.PRIORITY_BACKGROUND);
+            apply(view, mActions[i], action);
+            mActions[i] = action;
+        }
+    }
+
+    /*
+     * The visible part of the view and its distance from the visible part of
+     * the feed, 0 if visible and Integer.MAX_VALUE if not in the feed.
+     */
+    private void measure(VideoView view, int i, int feedLeft, int feedTop,
+            int feedRight, int feedBottom) {
+        int width = view.getWidth();
+        int height = view.getHeight();
+        if (view.getWindowToken() == null || !view.isShown() || width == 0 || height == 0) {
+            mFractions[i] = 0;
+            mDistances[i] = Integer.MAX_VALUE;
+            return;
+        }
+        if (view.getGlobalVisibleRect(mRect)) {
+            mFractions[i] = (float) mRect.width() * mRect.height() / ((float) width * height);
+        } else {
+            mFractions[i] = 0;
+        }
+        view.getLocationOnScreen(mLocation);
+        int left = mLocation[0];
+        int top = mLocation[1];
+        int dx = Math.max(0, Math.max(feedLeft - (left + width), left - feedRight));
+        int dy = Math.max(0, Math.max(feedTop - (top + height), top - feedBottom));
+        mDistances[i] = Math.max(dx, dy);
+    }
+
+    private static void apply(VideoView view, int oldAction, int action) {
+        if (action == oldAction) {
+            if (action == ACTION_PRELOAD && view.isDecoderReclaimed()) {
+                // prepare it again, or wait for a decoder to do so
+                view.preload();
+            }
+            return;
+        }
+        switch (action) {
+            case ACTION_PLAY:
+                view.start();
+                break;
+            case ACTION_PRELOAD:
+                if (oldAction == ACTION_PLAY) {
+                    view.pause();
+                } else {
+                    view.preload();
+                }
+                break;
+            case ACTION_UNLOAD:
+                view.unload();
+                break;
+        }
+    }
+
+    private final Runnable mUpdate = new Runnable() {
+        public void run() {
+            mUpdatePending = false;
+            if (mStarted) {
+                update();
+            }
+        }
+    };
+
+    private final ViewTreeObserver.OnScrollChangedListener mScrollListener =
+            new ViewTreeObserver.OnScrollChangedListener() {
+        public void onScrollChanged() {
+            scheduleUpdate();
+        }
+    };
+
+    private final ViewTreeObserver.OnGlobalLayoutListener mLayoutListener =
+            new ViewTreeObserver.OnGlobalLayoutListener() {
+        public void onGlobalLayout() {
+            scheduleUpdate();
+        }
+    };
+}
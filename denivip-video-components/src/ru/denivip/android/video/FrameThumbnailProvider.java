@@ -0,0 +1,53 @@
+package ru.denivip.android.video;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+/**
+ * Scrub previews extracted from the video itself, one frame every
+ * {@code interval} milliseconds.
+ * <p>
+ * Extracting a frame at a given time needs MediaMetadataRetriever of API 10
+ * or later; older platforms return the same frame for every position. Prefer
+ * {@link WebVttThumbnailProvider} for streams that come with a thumbnail
+ * track.
+ */
+public class FrameThumbnailProvider implements ScrubPreviewProvider {
+    /** The width tiles are scaled down to, in pixels. */
+    public static final int TILE_WIDTH = 160;
+
+    private final Context mContext;
+    private final Uri mUri;
+    private final int mInterval;
+
+    /**
+     * @param uri The video, preferably a local file.
+     * @param interval The time between two previewed frames in milliseconds.
+     */
+    public FrameThumbnailProvider(Context context, Uri uri, int interval) {
+        mContext = context.getApplicationContext();
+        mUri = uri;
+        mInterval = Math.max(1000, interval);
+    }
+
+    public void prepare() {
+    }
+
+    public int getTileIndex(int position, int duration) {
+        return position >= 0 ? position / mInterval : -1;
+    }
+
+    public Bitmap loadTile(int index) {
+        Bitmap frame = MediaPlayerInternals.captureFrame(mContext, mUri, index * (long) mInterval * 1000);
+        if (frame == null || frame.getWidth() <= TILE_WIDTH) {
+            return frame;
+        }
+        Bitmap tile = Bitmap.createScaledBitmap(frame, TILE_WIDTH,
+                frame.getHeight() * TILE_WIDTH / frame.getWidth(), true);
+        if (tile != frame) {
+            frame.recycle();
+        }
+        return tile;
+    }
+}
@@ -0,0 +1,29 @@
+package ru.denivip.android.video;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * The background thread that does the disk writes of the video components,
+ * so that none of them happens on the UI thread.
+ */
+final class IoThread {
+    private static Handler sHandler;
+
+    private IoThread() {
+    }
+
+    static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread("VideoIo", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+
+    static void post(Runnable r) {
+        getHandler().post(r);
+    }
+}
@@ -19,9 +19,12 @@ package ru.denivip.android.video;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.PixelFormat;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.LayerDrawable;
 import android.media.AudioManager;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -32,6 +35,7 @@ import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewParent;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.FrameLayout;
@@ -85,10 +89,15 @@ public class MediaController extends FrameLayout {
     private View                mDecor;
     private ProgressBar         mProgress;
     private boolean             mShowing;
+    private boolean             mWindowAdded;
+    private WindowManager.LayoutParams mDecorLayoutParams;
+    private final int[]         mAnchorPos = new int[2];
+    private int                 mScaledWidth = -1;
+    private int                 mScaledHeight = -1;
     private boolean             mDragging;
     private static final int    sDefaultTimeout = 3000;
     private static final int    FADE_OUT = 1;
-    private static final int    SHOW_PROGRESS = 2;
+    private static final int    APPLY_LEVELS = 2;
     private ImageButton         mPauseButton;
     
     private VerticalProgressBar mVolumeLevel;
@@ -99,6 +108,15 @@ public class MediaController extends FrameLayout {
     private ImageButton		 mBrightnessButton;
     private ImageButton         mVolumeButton;
     private GestureDetector 	 mGestureDetector;
+    private ImageView           mScrubPreview;
+    private ScrubPreviewProvider mScrubPreviewProvider;
+    private ScrubPreviewLoader  mScrubPreviewLoader;
+    private boolean             mSeekDeferred;
+    private BufferedRangesDrawable mBufferedRangesDrawable;
+    private final int[]         mBufferedRanges = new int[32];
+    private int                 mBufferedRangeCount;
+    private int                 mPendingVolume = -1;
+    private int                 mPendingBrightness = -1;
     
     private static final int FLIPPER_CHILD_VOLUME = 0;
     private static final int FLIPPER_CHILD_BRIGHTNESS = 1;
@@ -137,6 +155,7 @@ public class MediaController extends FrameLayout {
         mDecor.setOnTouchListener(mTouchListener);
         mWindow.setContentView(this);
         mWindow.setBackgroundDrawableResource(android.R.color.transparent);
+        initDecorLayoutParams();
         
         // While the media controller is up, the volume control keys should
         // affect the media stream type
@@ -148,6 +167,51 @@ public class MediaController extends FrameLayout {
         requestFocus();
     }
 
+    /*
+     * The window stays added between show() and hide(), which only toggle
+     * its visibility and touchability, so these params are allocated once.
+     */
+    private void initDecorLayoutParams() {
+        WindowManager.LayoutParams p = new WindowManager.LayoutParams();
+        p.gravity = Gravity.TOP | Gravity.LEFT;
+        p.format = PixelFormat.TRANSLUCENT;
+        p.type = WindowManager.LayoutParams.TYPE_APPLICATION_PANEL;
+        p.flags |= WindowManager.LayoutParams.FLAG_ALT_FOCUSABLE_IM;
+        p.token = null;
+        p.windowAnimations = 0; // android.R.style.DropDownAnimationDown;
+        mDecorLayoutParams = p;
+    }
+
+    /*
+     * Place the window over the anchor.
+     */
+    private void updateDecorLayoutParams() {
+        WindowManager.LayoutParams p = mDecorLayoutParams;
+        mAnchor.getLocationOnScreen(mAnchorPos);
+        int width = mAnchor.getWidth();
+        int height = mAnchor.getHeight();
+        int x = mAnchorPos[0] + mAnchor.getWidth() - width;
+        int y = mAnchorPos[1] + mAnchor.getHeight() - height;
+        p.width = width;
+        p.height = height;
+        p.x = x;
+        p.y = y;
+    }
+
+    /*
+     * A hidden window must neither take the touches meant for the anchor nor
+     * the key focus of the activity.
+     */
+    private void setDecorTouchable(boolean touchable) {
+        int flags = WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE
+                | WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE;
+        if (touchable) {
+            mDecorLayoutParams.flags &= ~flags;
+        } else {
+            mDecorLayoutParams.flags |= flags;
+        }
+    }
+
     private OnTouchListener mTouchListener = new OnTouchListener() {
         public boolean onTouch(View v, MotionEvent event) {
             if (event.getAction() == MotionEvent.ACTION_DOWN) {
@@ -171,16 +235,23 @@ public class MediaController extends FrameLayout {
      * @param view The view to which to anchor the controller when it is visible.
      */
     public void setAnchorView(View view) {
+        if (mShowing && view != mAnchor) {
+            // the window is placed over the old anchor
+            hide();
+        }
         mAnchor = view;
 
-        FrameLayout.LayoutParams frameParams = new FrameLayout.LayoutParams(
-                ViewGroup.LayoutParams.MATCH_PARENT,
-                ViewGroup.LayoutParams.MATCH_PARENT
-        );
+        // the controls are inflated once and kept for every later anchor,
+        // VideoView sets the anchor again on each openVideo()
+        if (mRoot == null) {
+            FrameLayout.LayoutParams frameParams = new FrameLayout.LayoutParams(
+                    ViewGroup.LayoutParams.MATCH_PARENT,
+                    ViewGroup.LayoutParams.MATCH_PARENT
+            );
 
-        removeAllViews();
-        View v = makeControllerView();
-        addView(v, frameParams);
+            View v = makeControllerView();
+            addView(v, frameParams);
+        }
     }
 
     /**
@@ -217,7 +288,23 @@ public class MediaController extends FrameLayout {
                 seeker.setOnSeekBarChangeListener(mSeekListener);
             }
             mProgress.setMax(1000);
+
+            // draw every buffered range instead of one secondary progress
+            Drawable d = mProgress.getProgressDrawable();
+            if (d instanceof LayerDrawable) {
+                mBufferedRangesDrawable = new BufferedRangesDrawable(
+                        getResources().getDrawable(R.drawable.seekbar_buffer));
+                LayerDrawable layers = (LayerDrawable) d.mutate();
+                layers.setDrawableByLayerId(
+                        android.R.id.secondaryProgress, mBufferedRangesDrawable);
+                // not set by the swap before Ice Cream Sandwich, and without it
+                // new ranges would only be drawn along with a progress change
+                mBufferedRangesDrawable.setCallback(layers);
+            }
         }
+
+        mScrubPreview = (ImageView) v.findViewById(R.id.scrub_preview);
+        createScrubPreviewLoader();
         
         mVolumeLevel = (VerticalProgressBar) v.findViewById(R.id.volumeBar);
         if (mVolumeLevel != null) {
@@ -254,6 +341,81 @@ public class MediaController extends FrameLayout {
         }
     }
     
+    /**
+     * Show preview thumbnails above the progress thumb while it is dragged.
+     * The player then seeks only once, when the thumb is released, instead
+     * of on every move.
+     *
+     * @param provider The source of the thumbnails, or null to seek while
+     * dragging without previews.
+     */
+    public void setScrubPreviewProvider(ScrubPreviewProvider provider) {
+        mScrubPreviewProvider = provider;
+        createScrubPreviewLoader();
+    }
+
+    private void createScrubPreviewLoader() {
+        if (mScrubPreviewLoader != null) {
+            mScrubPreviewLoader.release();
+            mScrubPreviewLoader = null;
+        }
+        if (mScrubPreviewProvider != null && mScrubPreview != null) {
+            mScrubPreviewLoader = new ScrubPreviewLoader(mScrubPreviewProvider, mScrubPreview);
+        }
+    }
+
+    /*
+     * Show the preview for the position centered above the thumb.
+     *
+     * @return Whether there is a preview for the position.
+     */
+    private boolean showScrubPreview(SeekBar bar, int position, int duration) {
+        if (!mScrubPreviewLoader.show(position, duration)) {
+            hideScrubPreview();
+            return false;
+        }
+        int x = bar.getPaddingLeft() + (bar.getWidth() - bar.getPaddingLeft()
+                - bar.getPaddingRight()) * bar.getProgress() / bar.getMax();
+        View v = bar;
+        while (v != mRoot) {
+            x += v.getLeft();
+            ViewParent parent = v.getParent();
+            if (!(parent instanceof View)) {
+                break;
+            }
+            v = (View) parent;
+        }
+        int width = mScrubPreview.getWidth();
+        int left = Math.max(0, Math.min(x - width / 2, mRoot.getWidth() - width));
+        ViewGroup.MarginLayoutParams lp = (ViewGroup.MarginLayoutParams) mScrubPreview.getLayoutParams();
+        if (lp.leftMargin != left) {
+            lp.leftMargin = left;
+            mScrubPreview.setLayoutParams(lp);
+        }
+        mScrubPreview.setVisibility(View.VISIBLE);
+        return true;
+    }
+
+    /*
+     * Whether the position was buffered at the last progress update, so that
+     * seeking there is about instant.
+     */
+    private boolean isBuffered(int position) {
+        for (int i = 0; i < mBufferedRangeCount; i++) {
+            if (position >= mBufferedRanges[2 * i] && position <= mBufferedRanges[2 * i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void hideScrubPreview() {
+        if (mScrubPreviewLoader != null) {
+            mScrubPreviewLoader.hide();
+            mScrubPreview.setVisibility(View.INVISIBLE);
+        }
+    }
+
     private Window getWindow() {
     	return mContext == null ? null : ((Activity) mContext).getWindow();
     }
@@ -298,29 +460,28 @@ public class MediaController extends FrameLayout {
             }
             disableUnsupportedButtons();
 
-            int [] anchorpos = new int[2];
-            mAnchor.getLocationOnScreen(anchorpos);
-
-            WindowManager.LayoutParams p = new WindowManager.LayoutParams();
-            p.gravity = Gravity.TOP | Gravity.LEFT;
-            p.width = mAnchor.getWidth();
-            p.height = mAnchor.getHeight();
-            p.x = anchorpos[0] + mAnchor.getWidth() - p.width;
-            p.y = anchorpos[1] + mAnchor.getHeight() - p.height;
-            p.format = PixelFormat.TRANSLUCENT;
-            p.type = WindowManager.LayoutParams.TYPE_APPLICATION_PANEL;
-            p.flags |= WindowManager.LayoutParams.FLAG_ALT_FOCUSABLE_IM;
-            p.token = null;
-            p.windowAnimations = 0; // android.R.style.DropDownAnimationDown;
-
-            if (mAnchor.getWidth() < 768) {
-            	scaleDrawables(true);
+            updateDecorLayoutParams();
+            setDecorTouchable(true);
+
+            // relayout the controls only when the anchor size changed
+            if (mAnchor.getWidth() != mScaledWidth || mAnchor.getHeight() != mScaledHeight) {
+                mScaledWidth = mAnchor.getWidth();
+                mScaledHeight = mAnchor.getHeight();
+                if (mAnchor.getWidth() < 768) {
+                	scaleDrawables(true);
+                }
+                else {
+                	scaleDrawables(false);
+                }
             }
-            else {
-            	scaleDrawables(false);
+
+            if (!mWindowAdded) {
+                mWindowManager.addView(mDecor, mDecorLayoutParams);
+                mWindowAdded = true;
+            } else {
+                mWindowManager.updateViewLayout(mDecor, mDecorLayoutParams);
             }
-            
-            mWindowManager.addView(mDecor, p);
+            mDecor.setVisibility(View.VISIBLE);
             mShowing = true;
         }
         updatePausePlay();
@@ -328,12 +489,11 @@ public class MediaController extends FrameLayout {
         // cause the progress bar to be updated even if mShowing
         // was already true.  This happens, for example, if we're
         // paused with the progress bar showing the user hits play.
-        mHandler.sendEmptyMessage(SHOW_PROGRESS);
+        ProgressTicker.getInstance().add(mProgressTicks);
 
-        Message msg = mHandler.obtainMessage(FADE_OUT);
+        mHandler.removeMessages(FADE_OUT);
         if (timeout != 0) {
-            mHandler.removeMessages(FADE_OUT);
-            mHandler.sendMessageDelayed(msg, timeout);
+            mHandler.sendEmptyMessageDelayed(FADE_OUT, timeout);
         }
     }
     
@@ -377,35 +537,70 @@ public class MediaController extends FrameLayout {
             return;
 
         if (mShowing) {
+            ProgressTicker.getInstance().remove(mProgressTicks);
+            mHandler.removeMessages(FADE_OUT);
+            // keep the window, showing it again is then only a visibility change
+            mDecor.setVisibility(View.INVISIBLE);
+            setDecorTouchable(false);
             try {
-                mHandler.removeMessages(SHOW_PROGRESS);
-                mWindowManager.removeView(mDecor);
+                mWindowManager.updateViewLayout(mDecor, mDecorLayoutParams);
             } catch (IllegalArgumentException ex) {
                 Log.w("MediaController", "already removed");
+                mWindowAdded = false;
             }
             mShowing = false;
         }
     }
 
+    /**
+     * Remove the window of the controller, e.g. when the anchor leaves the
+     * screen. The controller is hidden and a later show() adds the window
+     * again.
+     */
+    public void removeWindow() {
+        hide();
+        if (mWindowAdded) {
+            try {
+                mWindowManager.removeView(mDecor);
+            } catch (IllegalArgumentException ex) {
+                Log.w("MediaController", "already removed");
+            }
+            mWindowAdded = false;
+        }
+    }
+
     private Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
-            int pos;
             switch (msg.what) {
                 case FADE_OUT:
                     hide();
                     break;
-                case SHOW_PROGRESS:
-                    pos = setProgress();
-                    if (!mDragging && mShowing && mPlayer.isPlaying()) {
-                        msg = obtainMessage(SHOW_PROGRESS);
-                        sendMessageDelayed(msg, 1000 - (pos % 1000));
-                    }
+                case APPLY_LEVELS:
+                    applyPendingLevels();
                     break;
             }
         }
     };
 
+    /*
+     * Update the progress while playing, as often as the thumb moves by a
+     * pixel. The position of the player is interpolated, so asking for it
+     * that often is cheap.
+     */
+    private final ProgressTicker.Client mProgressTicks = new ProgressTicker.Client() {
+        @Override
+        int onTick() {
+            setProgress();
+            if (mDragging || !mShowing || !mPlayer.isPlaying()) {
+                return -1;
+            }
+            int width = mProgress == null ? 0
+                    : mProgress.getWidth() - mProgress.getPaddingLeft() - mProgress.getPaddingRight();
+            return ProgressTicker.getInterval(mPlayer.getDuration(), width);
+        }
+    };
+
     private int setProgress() {
         if (mPlayer == null || mDragging) {
             return 0;
@@ -418,8 +613,13 @@ public class MediaController extends FrameLayout {
                 long pos = 1000L * position / duration;
                 mProgress.setProgress( (int) pos);
             }
-            int percent = mPlayer.getBufferPercentage();
-            mProgress.setSecondaryProgress(percent * 10);
+            if (mBufferedRangesDrawable != null) {
+                mBufferedRangeCount = mPlayer.getBufferedRanges(mBufferedRanges);
+                mBufferedRangesDrawable.setRanges(mBufferedRanges, mBufferedRangeCount, duration);
+            } else {
+                int percent = mPlayer.getBufferPercentage();
+                mProgress.setSecondaryProgress(percent * 10);
+            }
         }
 
         return position;
@@ -564,12 +764,10 @@ public class MediaController extends FrameLayout {
 
             mDragging = true;
 
-            // By removing these pending progress messages we make sure
-            // that a) we won't update the progress while the user adjusts
-            // the seekbar and b) once the user is done dragging the thumb
-            // we will post one of these messages to the queue again and
-            // this ensures that there will be exactly one message queued up.
-            mHandler.removeMessages(SHOW_PROGRESS);
+            // By stopping the progress ticks we make sure that we won't
+            // update the progress while the user adjusts the seekbar. Once
+            // the user is done dragging the thumb they are started again.
+            ProgressTicker.getInstance().remove(mProgressTicks);
         }
 
         public void onProgressChanged(SeekBar bar, int progress, boolean fromuser) {
@@ -581,10 +779,24 @@ public class MediaController extends FrameLayout {
 
             long duration = mPlayer.getDuration();
             long newposition = (duration * progress) / 1000L;
+            if (mDragging && mScrubPreviewLoader != null
+                    && showScrubPreview(bar, (int) newposition, (int) duration)
+                    && !isBuffered((int) newposition)) {
+                // the preview shows where to, seek once the thumb is released
+                // unless the position is buffered and the seek is cheap
+                mSeekDeferred = true;
+                return;
+            }
             mPlayer.seekTo( (int) newposition);
         }
 
         public void onStopTrackingTouch(SeekBar bar) {
+            hideScrubPreview();
+            if (mSeekDeferred) {
+                mSeekDeferred = false;
+                long duration = mPlayer.getDuration();
+                mPlayer.seekTo( (int) ((duration * bar.getProgress()) / 1000L));
+            }
             mDragging = false;
             setProgress();
             updatePausePlay();
@@ -593,14 +805,56 @@ public class MediaController extends FrameLayout {
             // Ensure that progress is properly updated in the future,
             // the call to show() does not guarantee this because it is a
             // no-op if we are already showing.
-            mHandler.sendEmptyMessage(SHOW_PROGRESS);
+            ProgressTicker.getInstance().add(mProgressTicks);
         }
     };
     
+    /*
+     * The bars report every touch move, often several per frame. Setting the
+     * volume is a call into the media server and setting the brightness
+     * relayouts the window, so the moves are applied once per frame, and the
+     * final value when the touch ends.
+     */
+    private void scheduleLevels() {
+        if (!mHandler.hasMessages(APPLY_LEVELS)) {
+            long now = SystemClock.uptimeMillis();
+            mHandler.sendEmptyMessageAtTime(APPLY_LEVELS,
+                    now + ProgressTicker.FRAME_INTERVAL - now % ProgressTicker.FRAME_INTERVAL);
+        }
+    }
+
+    private void applyPendingLevels() {
+        mHandler.removeMessages(APPLY_LEVELS);
+        if (mPendingVolume >= 0) {
+            applyVolume(mPendingVolume);
+            mPendingVolume = -1;
+        }
+        if (mPendingBrightness >= 0) {
+            applyBrightness(mPendingBrightness);
+            mPendingBrightness = -1;
+        }
+    }
+
+    private void applyVolume(int progress) {
+        float volume = (float)progress / 100;
+        mPlayer.setVolume(volume, volume);
+    }
+
+    private void applyBrightness(int progress) {
+        WindowManager.LayoutParams lp = getWindow().getAttributes();
+        float brightness = (float)(progress + 10) / 100;
+        if (lp.screenBrightness != brightness) {
+            lp.screenBrightness = brightness;
+            getWindow().setAttributes(lp);
+        }
+    }
+
     private VerticalSeekBar.OnSeekBarChangeListener mVolumeLevelListener = new VerticalSeekBar.OnSeekBarChangeListener() {
 		
 		@Override
 		public void onStopTrackingTouch(VerticalSeekBar seekBar) {
+            mPendingVolume = seekBar.getProgress();
+            applyPendingLevels();
             show();
 		}
 		
@@ -616,8 +870,8 @@ public class MediaController extends FrameLayout {
                 return;
             }
 
-            float volume = (float)progress / 100;
-            mPlayer.setVolume(volume, volume);
+            mPendingVolume = progress;
+            scheduleLevels();
 		}
 	};
 	
@@ -625,6 +879,8 @@ public class MediaController extends FrameLayout {
 		
 		@Override
 		public void onStopTrackingTouch(VerticalSeekBar seekBar) {
+			mPendingBrightness = seekBar.getProgress();
+			applyPendingLevels();
 			show();
 		}
 		
@@ -640,9 +896,8 @@ public class MediaController extends FrameLayout {
 				return;
 			}
 			
-			WindowManager.LayoutParams lp = getWindow().getAttributes();
-			lp.screenBrightness = (float)(progress + 10) / 100;
-			getWindow().setAttributes(lp);
+			mPendingBrightness = progress;
+			scheduleLevels();
 		}
 	};
 	
@@ -0,0 +1,281 @@
+package ru.denivip.android.video;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Remembers what was learned about each video the last time it was prepared:
+ * duration, dimensions and capability flags, and for local MP4 files the
+ * byte offset of the moov atom.
+ * <p>
+ * {@link VideoView} consults the cache when a video is opened, so that the
+ * layout and the progress bar of the {@link MediaController} are right before
+ * the player has finished preparing. The cache holds the most recently used
+ * entries only and is kept in a file, which is read and written on a
+ * background thread.
+ */
+public final class MediaInfoCache {
+    private static final String TAG = "MediaInfoCache";
+    private static final String FILE_NAME = "videoview-mediainfo";
+    private static final int VERSION = 1;
+    private static final int MAX_ENTRIES = 256;
+
+    private static final int MOOV = 0x6d6f6f76;  // 'moov'
+
+    /**
+     * What is known about one video.
+     */
+    public static final class Entry {
+        final int     mDuration;
+        final int     mVideoWidth;
+        final int     mVideoHeight;
+        final boolean mCanPause;
+        final boolean mCanSeekBack;
+        final boolean mCanSeekForward;
+        volatile long mMoovOffset = -1;  // found on the IoThread
+
+        Entry(int duration, int videoWidth, int videoHeight,
+                boolean canPause, boolean canSeekBack, boolean canSeekForward) {
+            mDuration = duration;
+            mVideoWidth = videoWidth;
+            mVideoHeight = videoHeight;
+            mCanPause = canPause;
+            mCanSeekBack = canSeekBack;
+            mCanSeekForward = canSeekForward;
+        }
+
+        /**
+         * @return The duration in milliseconds, or -1 if unknown.
+         */
+        public int getDuration() {
+            return mDuration;
+        }
+
+        public int getVideoWidth() {
+            return mVideoWidth;
+        }
+
+        public int getVideoHeight() {
+            return mVideoHeight;
+        }
+
+        /**
+         * @return The offset of the moov atom in the file, or -1 if unknown or
+         * the video isn't a local MP4 file.
+         */
+        public long getMoovOffset() {
+            return mMoovOffset;
+        }
+    }
+
+    private static MediaInfoCache sInstance;
+
+    private final File mFile;
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MediaInfoCache.Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };  // guarded by this
+    private boolean mSavePending;  // guarded by this
+
+    public static synchronized MediaInfoCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MediaInfoCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private MediaInfoCache(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+        IoThread.post(new Runnable() {
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * @return What is known about the video, or null if it hasn't been
+     * prepared before.
+     */
+    public synchronized Entry get(Uri uri) {
+        return mEntries.get(uri.toString());
+    }
+
+    /**
+     * Remember what was learned about the video while it was prepared.
+     */
+    void put(final Uri uri, final Entry entry) {
+        synchronized (this) {
+            Entry old = mEntries.put(uri.toString(), entry);
+            if (old != null) {
+                entry.mMoovOffset = old.mMoovOffset;
+            }
+        }
+        IoThread.post(new Runnable() {
+            public void run() {
+                if (entry.mMoovOffset < 0) {
+                    entry.mMoovOffset = findMoovOffset(uri);
+                }
+            }
+        });
+        scheduleSave();
+    }
+
+    /*
+     * Coalesce the writes of several puts into one.
+     */
+    private synchronized void scheduleSave() {
+        if (mSavePending) {
+            return;
+        }
+        mSavePending = true;
+        IoThread.post(new Runnable() {
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    private void load() {
+        DataInputStream in = null;
+        ArrayList<String> keys = new ArrayList<String>();
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                keys.add(in.readUTF());
+                Entry entry = new Entry(in.readInt(), in.readInt(), in.readInt(),
+                        in.readBoolean(), in.readBoolean(), in.readBoolean());
+                entry.mMoovOffset = in.readLong();
+                entries.add(entry);
+            }
+        } catch (FileNotFoundException ex) {
+            // nothing saved yet
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to read " + mFile, ex);
+        } finally {
+            closeQuietly(in);
+        }
+
+        synchronized (this) {
+            // entries put while loading are newer than the saved ones; the
+            // saved ones are in least recently used order, so they go first
+            LinkedHashMap<String, Entry> newer = new LinkedHashMap<String, Entry>(mEntries);
+            mEntries.clear();
+            for (int i = 0; i < keys.size(); i++) {
+                mEntries.put(keys.get(i), entries.get(i));
+            }
+            mEntries.putAll(newer);
+        }
+    }
+
+    private void save() {
+        ArrayList<String> keys;
+        ArrayList<Entry> entries;
+        synchronized (this) {
+            mSavePending = false;
+            keys = new ArrayList<String>(mEntries.keySet());
+            entries = new ArrayList<Entry>(mEntries.values());
+        }
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(VERSION);
+            out.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                Entry entry = entries.get(i);
+                out.writeUTF(keys.get(i));
+                out.writeInt(entry.mDuration);
+                out.writeInt(entry.mVideoWidth);
+                out.writeInt(entry.mVideoHeight);
+                out.writeBoolean(entry.mCanPause);
+                out.writeBoolean(entry.mCanSeekBack);
+                out.writeBoolean(entry.mCanSeekForward);
+                out.writeLong(entry.mMoovOffset);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "Unable to replace " + mFile);
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to save " + mFile, ex);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /*
+     * Walk the top level boxes of a local MP4 file up to the moov atom. Only
+     * the 8 or 16 byte box headers are read.
+     */
+    private static long findMoovOffset(Uri uri) {
+        String scheme = uri.getScheme();
+        if (scheme != null && !scheme.equals("file")) {
+            return -1;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(uri.getPath(), "r");
+            long length = file.length();
+            long offset = 0;
+            while (offset + 8 <= length) {
+                file.seek(offset);
+                long size = file.readInt() & 0xffffffffL;
+                int type = file.readInt();
+                if (type == MOOV) {
+                    return offset;
+                }
+                if (size == 1) {
+                    size = file.readLong();
+                } else if (size == 0) {
+                    break;  // the box extends to the end of the file
+                }
+                if (size < 8) {
+                    break;  // not an MP4 file
+                }
+                offset += size;
+            }
+        } catch (IOException ex) {
+            // not readable, leave it unknown
+        } finally {
+            closeQuietly(file);
+        }
+        return -1;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException ex) {
+                // nothing to do
+            }
+        }
+    }
+}
@@ -4,4 +4,12 @@ public interface MediaPlayerControl extends
 		android.widget.MediaController.MediaPlayerControl {
 	void setVolume(float leftVolume, float rightVolume);
 	void setFullscreen(boolean fullscreen);
+
+	/**
+	 * Get the parts of the media that are buffered.
+	 *
+	 * @param out Receives the ranges as start, end pairs in milliseconds.
+	 * @return The number of ranges written to out.
+	 */
+	int getBufferedRanges(int[] out);
 }
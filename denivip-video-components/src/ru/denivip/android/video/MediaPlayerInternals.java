@@ -2,24 +2,119 @@ package ru.denivip.android.video;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.HashMap;
 
+import android.content.Context;
+import android.graphics.Bitmap;
 import android.media.MediaPlayer;
 import android.media.Metadata;
+import android.net.Uri;
+import android.util.Log;
 
 /**
  * Этот класс содержит обертки для вызова внутренних методов MediaPlayer,
  * которые недоступны через публичный API.
- * 
+ *
  * @hide
  */
 public class MediaPlayerInternals {
+	private static final String TAG = "MediaPlayerInternals";
+
+	/**
+	 * Набор внутренних методов, найденных у класса плеера. Методы ищутся
+	 * один раз для каждого класса, после чего вызовы обходятся без поиска.
+	 */
+	public static final class Capabilities {
+		private final Class<?> mPlayerClass;
+		private final Method mGetMetadata;
+		private final Method mSuspend;
+		private final Method mResume;
+		private final long mProbeNanos;
+
+		private Capabilities(Class<?> playerClass) {
+			long start = System.nanoTime();
+			mPlayerClass = playerClass;
+			mGetMetadata = find(playerClass, "getMetadata", boolean.class, boolean.class);
+			mSuspend = find(playerClass, "suspend");
+			mResume = find(playerClass, "resume");
+			mProbeNanos = System.nanoTime() - start;
+		}
+
+		private static Method find(Class<?> cls, String name, Class<?>... parameterTypes) {
+			try {
+				return cls.getMethod(name, parameterTypes);
+			} catch (NoSuchMethodException e) {
+				return null;
+			} catch (SecurityException e) {
+				return null;
+			}
+		}
+
+		/** @return Доступен ли getMetadata(boolean, boolean). */
+		public boolean hasMetadata() {
+			return mGetMetadata != null;
+		}
+
+		/** @return Доступен ли suspend(). */
+		public boolean hasSuspend() {
+			return mSuspend != null;
+		}
+
+		/** @return Доступен ли resume(). */
+		public boolean hasResume() {
+			return mResume != null;
+		}
+
+		/** @return Время поиска методов в наносекундах. */
+		public long getProbeNanos() {
+			return mProbeNanos;
+		}
+
+		@Override
+		public String toString() {
+			return "Capabilities{" + mPlayerClass.getName()
+					+ " getMetadata=" + hasMetadata()
+					+ " suspend=" + hasSuspend()
+					+ " resume=" + hasResume()
+					+ " probeUs=" + mProbeNanos / 1000 + "}";
+		}
+	}
+
+	// почти всегда используется единственный класс плеера, поэтому
+	// последний результат проверяется до обращения к таблице
+	private static volatile Capabilities sLast;
+	private static final HashMap<Class<?>, Capabilities> sProbed =
+			new HashMap<Class<?>, Capabilities>();
+
+	/**
+	 * Возвращает внутренние методы, доступные у данного плеера.
+	 */
+	public static Capabilities getCapabilities(MediaPlayer mp) {
+		Class<?> cls = mp.getClass();
+		Capabilities caps = sLast;
+		if (caps != null && caps.mPlayerClass == cls) {
+			return caps;
+		}
+		synchronized (sProbed) {
+			caps = sProbed.get(cls);
+			if (caps == null) {
+				caps = new Capabilities(cls);
+				sProbed.put(cls, caps);
+				Log.i(TAG, caps.toString());
+			}
+		}
+		sLast = caps;
+		return caps;
+	}
+
 	public static Metadata getMetadata(MediaPlayer mp,
 			final boolean update_only, final boolean apply_filter) {
+		Method method = getCapabilities(mp).mGetMetadata;
+		if (method == null) {
+			return null;
+		}
 		try {
-			Method method = mp.getClass().getMethod("getMetadata");
 			return (Metadata) method.invoke(mp, update_only, apply_filter);
-		} catch (NoSuchMethodException e) {
-			return null;
 		} catch (IllegalAccessException e) {
 			return null;
 		} catch (InvocationTargetException e) {
@@ -28,11 +123,19 @@ public class MediaPlayerInternals {
 	}
 
 	public static boolean suspend(MediaPlayer mp) {
+		return invokeBoolean(getCapabilities(mp).mSuspend, mp);
+	}
+
+	public static boolean resume(MediaPlayer mp) {
+		return invokeBoolean(getCapabilities(mp).mResume, mp);
+	}
+
+	private static boolean invokeBoolean(Method method, MediaPlayer mp) {
+		if (method == null) {
+			return false;
+		}
 		try {
-			Method method = mp.getClass().getMethod("suspend");
 			return ((Boolean)method.invoke(mp)).booleanValue();
-		} catch (NoSuchMethodException e) {
-			return false;
 		} catch (IllegalAccessException e) {
 			return false;
 		} catch (InvocationTargetException e) {
@@ -40,16 +143,81 @@ public class MediaPlayerInternals {
 		}
 	}
 
-	public static boolean resume(MediaPlayer mp) {
+	// MediaMetadataRetriever скрыт до API 10: до него есть только
+	// captureFrame(), начиная с него - getFrameAtTime(long)
+	private static final int MODE_CAPTURE_FRAME_ONLY = 0x02;
+
+	private static boolean sRetrieverProbed;
+	private static Class<?> sRetrieverClass;
+	private static Method sRetrieverSetDataSource;
+	private static Method sRetrieverSetMode;
+	private static Method sRetrieverGetFrameAtTime;
+	private static Method sRetrieverCaptureFrame;
+	private static Method sRetrieverRelease;
+
+	private static synchronized boolean probeRetriever() {
+		if (!sRetrieverProbed) {
+			sRetrieverProbed = true;
+			try {
+				Class<?> cls = Class.forName("android.media.MediaMetadataRetriever");
+				sRetrieverSetDataSource = cls.getMethod("setDataSource", Context.class, Uri.class);
+				sRetrieverRelease = cls.getMethod("release");
+				sRetrieverSetMode = Capabilities.find(cls, "setMode", int.class);
+				sRetrieverGetFrameAtTime = Capabilities.find(cls, "getFrameAtTime", long.class);
+				sRetrieverCaptureFrame = Capabilities.find(cls, "captureFrame");
+				if (sRetrieverGetFrameAtTime != null || sRetrieverCaptureFrame != null) {
+					sRetrieverClass = cls;
+				}
+			} catch (ClassNotFoundException e) {
+				// нет на этом устройстве
+			} catch (NoSuchMethodException e) {
+				// нет на этом устройстве
+			}
+			Log.i(TAG, "MediaMetadataRetriever " + (sRetrieverClass != null ? "available" : "unavailable"));
+		}
+		return sRetrieverClass != null;
+	}
+
+	/**
+	 * Извлекает кадр видео с помощью MediaMetadataRetriever. Вызов может
+	 * длиться долго и не должен выполняться в UI-потоке.
+	 *
+	 * @param timeUs Время кадра в микросекундах. До API 10 не учитывается,
+	 * извлекается кадр, выбранный самим retriever.
+	 * @return Кадр в полном размере или null.
+	 */
+	public static Bitmap captureFrame(Context context, Uri uri, long timeUs) {
+		if (!probeRetriever()) {
+			return null;
+		}
+		Object retriever = null;
 		try {
-			Method method = mp.getClass().getMethod("resume");
-			return ((Boolean)method.invoke(mp)).booleanValue();
-		} catch (NoSuchMethodException e) {
-			return false;
+			retriever = sRetrieverClass.newInstance();
+			if (sRetrieverSetMode != null) {
+				sRetrieverSetMode.invoke(retriever, MODE_CAPTURE_FRAME_ONLY);
+			}
+			sRetrieverSetDataSource.invoke(retriever, context, uri);
+			if (sRetrieverGetFrameAtTime != null) {
+				return (Bitmap) sRetrieverGetFrameAtTime.invoke(retriever, timeUs);
+			}
+			return (Bitmap) sRetrieverCaptureFrame.invoke(retriever);
+		} catch (InstantiationException e) {
+			return null;
 		} catch (IllegalAccessException e) {
-			return false;
+			return null;
 		} catch (InvocationTargetException e) {
-			return false;
+			Log.w(TAG, "Unable to capture frame of " + uri, e.getCause());
+			return null;
+		} finally {
+			if (retriever != null) {
+				try {
+					sRetrieverRelease.invoke(retriever);
+				} catch (IllegalAccessException e) {
+					// ничего не поделать
+				} catch (InvocationTargetException e) {
+					// ничего не поделать
+				}
+			}
 		}
 	}
 }
@@ -0,0 +1,231 @@
+package ru.denivip.android.video;
+
+import java.util.ArrayList;
+
+import android.media.MediaPlayer;
+import android.util.Log;
+
+/**
+ * Process-wide pool of idle {@link MediaPlayer} instances.
+ * <p>
+ * Constructing a MediaPlayer sets up a native player object, which is one of
+ * the more expensive steps of opening a video. VideoViews borrow
+ * players with {@link #acquire()} and hand them back with {@link #recycle}
+ * instead of releasing them, so that the next open can skip the construction.
+ * <p>
+ * Borrows are never refused, so the pool does not bound the number of
+ * borrowed players; {@link DecoderGovernor} does. The pool only keeps no
+ * more idle players than fit into the decoder budget next to the borrowed
+ * ones. Idle players are dropped by {@link #onLowMemory()}, which
+ * the application should call from its own onLowMemory() callback.
+ */
+public class MediaPlayerPool {
+    private static final String TAG = "MediaPlayerPool";
+
+    /** Most devices are able to run at least two hardware decoders. */
+    public static final int DEFAULT_DECODER_BUDGET = 2;
+
+    private static MediaPlayerPool sInstance;
+
+    private final ArrayList<MediaPlayer> mIdle = new ArrayList<MediaPlayer>();
+    private int mDecoderBudget = DEFAULT_DECODER_BUDGET;
+    private int mInUse;
+
+    private int mHits;
+    private int mMisses;
+    private long mCreateNanos;  // total time spent constructing players on misses
+
+    public static synchronized MediaPlayerPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new MediaPlayerPool();
+        }
+        return sInstance;
+    }
+
+    MediaPlayerPool() {
+    }
+
+    /**
+     * Set the maximum number of players kept alive at once, including the
+     * borrowed ones. Idle players above the new budget are released.
+     */
+    public void setDecoderBudget(int budget) {
+        ArrayList<MediaPlayer> evicted;
+        synchronized (this) {
+            mDecoderBudget = Math.max(0, budget);
+            evicted = takeIdleLocked(mIdle.size() + mInUse - mDecoderBudget);
+        }
+        releaseAll(evicted);
+    }
+
+    public synchronized int getDecoderBudget() {
+        return mDecoderBudget;
+    }
+
+    /**
+     * Create idle players ahead of time so that the following borrows are
+     * hits. Never creates more players than the decoder budget allows.
+     *
+     * @param count The number of idle players wanted in the pool.
+     */
+    public void prewarm(int count) {
+        int missing;
+        synchronized (this) {
+            missing = Math.min(count - mIdle.size(), mDecoderBudget - mIdle.size() - mInUse);
+        }
+        for (int i = 0; i < missing; i++) {
+            MediaPlayer mp = new MediaPlayer();
+            boolean kept;
+            synchronized (this) {
+                kept = mIdle.size() + mInUse < mDecoderBudget;
+                if (kept) {
+                    mIdle.add(mp);
+                }
+            }
+            if (!kept) {
+                mp.release();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Borrow a player in the Idle state. The caller owns the player until it
+     * is passed back to {@link #recycle} or {@link #discard}.
+     */
+    public MediaPlayer acquire() {
+        MediaPlayer mp = null;
+        synchronized (this) {
+            int last = mIdle.size() - 1;
+            if (last >= 0) {
+                mp = mIdle.remove(last);
+                mHits++;
+            } else {
+                mMisses++;
+            }
+            mInUse++;
+        }
+        if (mp == null) {
+            long start = System.nanoTime();
+            mp = new MediaPlayer();
+            long spent = System.nanoTime() - start;
+            synchronized (this) {
+                mCreateNanos += spent;
+            }
+        }
+        return mp;
+    }
+
+    /**
+     * Return a borrowed player. The player is reset and kept for the next
+     * borrow if the decoder budget allows it, otherwise it is released.
+     */
+    public void recycle(MediaPlayer mp) {
+        mp.reset();
+        // idle players must not keep the previous owner alive, reset()
+        // leaves the surface holder in place
+        mp.setDisplay(null);
+        mp.setOnPreparedListener(null);
+        mp.setOnVideoSizeChangedListener(null);
+        mp.setOnCompletionListener(null);
+        mp.setOnErrorListener(null);
+        mp.setOnBufferingUpdateListener(null);
+        mp.setOnSeekCompleteListener(null);
+        mp.setOnInfoListener(null);
+
+        boolean kept;
+        synchronized (this) {
+            mInUse--;
+            kept = mIdle.size() + mInUse < mDecoderBudget;
+            if (kept) {
+                mIdle.add(mp);
+            }
+        }
+        if (!kept) {
+            mp.release();
+        }
+    }
+
+    /**
+     * Release a borrowed player without returning it to the pool, e.g. when
+     * the media server died and the player can not be reused.
+     */
+    public void discard(MediaPlayer mp) {
+        mp.release();
+        synchronized (this) {
+            mInUse--;
+        }
+    }
+
+    /**
+     * Release all idle players. Borrowed players are not affected.
+     */
+    public void onLowMemory() {
+        ArrayList<MediaPlayer> evicted;
+        synchronized (this) {
+            evicted = takeIdleLocked(mIdle.size());
+        }
+        releaseAll(evicted);
+    }
+
+    public synchronized int getIdleCount() {
+        return mIdle.size();
+    }
+
+    public synchronized int getInUseCount() {
+        return mInUse;
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * @return The share of borrows served by an idle player, 0..1.
+     */
+    public synchronized float getHitRate() {
+        int borrows = mHits + mMisses;
+        return borrows > 0 ? (float) mHits / borrows : 0;
+    }
+
+    /**
+     * @return The construction time a pool hit saves, in milliseconds. This is
+     * the average time spent creating a player on a miss.
+     */
+    public synchronized float getTimeSavedPerHit() {
+        return mMisses > 0 ? mCreateNanos / 1000000f / mMisses : 0;
+    }
+
+    public void logStatistics() {
+        Log.d(TAG, toString());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MediaPlayerPool{budget=" + mDecoderBudget
+                + " idle=" + mIdle.size()
+                + " inUse=" + mInUse
+                + " hits=" + mHits
+                + " misses=" + mMisses
+                + " hitRate=" + getHitRate()
+                + " savedPerHitMs=" + getTimeSavedPerHit() + "}";
+    }
+
+    private ArrayList<MediaPlayer> takeIdleLocked(int count) {
+        ArrayList<MediaPlayer> taken = new ArrayList<MediaPlayer>();
+        while (count-- > 0 && !mIdle.isEmpty()) {
+            taken.add(mIdle.remove(mIdle.size() - 1));
+        }
+        return taken;
+    }
+
+    private static void releaseAll(ArrayList<MediaPlayer> players) {
+        for (int i = 0; i < players.size(); i++) {
+            players.get(i).release();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package ru.denivip.android.video;
+
+import android.media.MediaPlayer;
+import android.os.SystemClock;
+
+/**
+ * The playback position of a {@link VideoView}, cheap enough to read on every
+ * frame.
+ * <p>
+ * Asking MediaPlayer for its position is a call into the media server. The
+ * clock asks only every {@link #SAMPLE_INTERVAL} milliseconds and moves on
+ * with the uptime clock in between. Small drift is corrected without letting
+ * the position run backwards; a larger difference, e.g. after the player
+ * stalled for buffering, is taken over as is. While paused the clock doesn't
+ * ask the player at all. Reading it allocates nothing.
+ * <p>
+ * The clock is used on the UI thread only.
+ */
+final class PlaybackClock {
+    static final int SAMPLE_INTERVAL = 250;
+    private static final int MAX_DRIFT = 200;
+
+    private int     mBasePosition;
+    private long    mBaseTime;
+    private long    mSampleTime;
+    private boolean mRunning;
+    private int     mLastPosition;
+    private int     mDuration = -1;
+
+    /**
+     * Take over the position of the player, e.g. after its state changed.
+     *
+     * @param running Whether the position moves on from here.
+     */
+    void sync(int position, boolean running) {
+        long now = SystemClock.uptimeMillis();
+        mBasePosition = position;
+        mBaseTime = now;
+        mSampleTime = now;
+        mRunning = running;
+        mLastPosition = position;
+    }
+
+    /**
+     * The player was asked to seek to the position.
+     */
+    void seek(int position) {
+        sync(position, mRunning);
+    }
+
+    /**
+     * @param duration The duration to clamp the position to, or -1.
+     */
+    void setDuration(int duration) {
+        mDuration = duration;
+    }
+
+    int getPosition(MediaPlayer mp) {
+        if (!mRunning) {
+            return mBasePosition;
+        }
+        long now = SystemClock.uptimeMillis();
+        int position = mBasePosition + (int) (now - mBaseTime);
+        if (now - mSampleTime >= SAMPLE_INTERVAL) {
+            mSampleTime = now;
+            int actual = mp.getCurrentPosition();
+            int drift = actual - position;
+            if (drift > 0 || drift < -MAX_DRIFT) {
+                // behind, or far ahead of the player: take its position
+                mBasePosition = actual;
+                mBaseTime = now;
+                mLastPosition = actual;
+                position = actual;
+            } else {
+                // slightly ahead: let the player catch up
+                mBasePosition += drift / 2;
+            }
+        }
+        if (position < mLastPosition) {
+            position = mLastPosition;
+        }
+        if (mDuration > 0 && position > mDuration) {
+            position = mDuration;
+        }
+        mLastPosition = position;
+        return position;
+    }
+}
@@ -0,0 +1,29 @@
+package ru.denivip.android.video;
+
+/**
+ * Receives the state changes and position updates of a {@link VideoView}.
+ * Any number of observers can be added to a view with
+ * {@link VideoView#addPlaybackObserver}. All methods are called on the UI
+ * thread.
+ */
+public interface PlaybackObserver {
+    /**
+     * Called on every change of the playback state.
+     *
+     * @param state One of the VideoView.STATE_* constants.
+     */
+    void onPlaybackStateChanged(int state);
+
+    /**
+     * Called a few times a second while playing, and after seeks. Updates
+     * that follow each other faster than they are delivered are conflated,
+     * so only the latest position is seen.
+     */
+    void onPositionChanged(int position, int duration);
+
+    /**
+     * Called when the player reports an error, before the state changes to
+     * VideoView.STATE_ERROR.
+     */
+    void onPlaybackError(int what, int extra);
+}
@@ -0,0 +1,91 @@
+package ru.denivip.android.video;
+
+import android.app.Activity;
+
+/**
+ * Keeps the playback of a {@link VideoView} running while its activity is
+ * recreated for a configuration change, e.g. on rotation, and suspends it
+ * when the activity really goes away.
+ * <p>
+ * Create one in onCreate() and forward the activity callbacks to it:
+ * <pre>
+ * mRetainer = new PlaybackRetainer(this, videoView);
+ * if (!mRetainer.restore()) {
+ *     videoView.setVideoURI(uri);
+ *     videoView.start();
+ * }
+ * </pre>
+ * and call {@link #onResume()}, {@link #onStop()},
+ * {@link #onRetainNonConfigurationInstance()} and {@link #onDestroy()} from
+ * the callbacks of the same name. The activity must not handle the
+ * configuration changes itself through android:configChanges, or it is
+ * never recreated and there is nothing to retain.
+ * <p>
+ * The view should {@link VideoView#setKeepPlayingOnSurfaceLoss keep playing
+ * on surface loss}, as the surface of the old activity goes away before the
+ * new one exists.
+ * <p>
+ * The playback is only suspended in onStop(). While the activity is paused
+ * but still visible, e.g. under a dialog, the audio goes on for as long as
+ * that lasts. Pause the view in onPause() if this is not wanted.
+ */
+public final class PlaybackRetainer {
+    private final Activity mActivity;
+    private final VideoView mView;
+    private boolean mRetained;
+
+    public PlaybackRetainer(Activity activity, VideoView view) {
+        mActivity = activity;
+        mView = view;
+    }
+
+    /**
+     * Continue the playback retained by the previous instance of the
+     * activity, if any. Call from onCreate() after the view was set up.
+     *
+     * @return Whether a playback was continued.
+     */
+    public boolean restore() {
+        Object retained = mActivity.getLastNonConfigurationInstance();
+        if (!(retained instanceof DetachedPlayback)) {
+            return false;
+        }
+        mView.attachPlayback((DetachedPlayback) retained);
+        return true;
+    }
+
+    public void onResume() {
+        mView.removeCallbacks(mSuspend);
+        mView.resume();
+    }
+
+    public void onStop() {
+        // On a configuration change onRetainNonConfigurationInstance() follows
+        // in the same message and takes the player away, so the suspend posted
+        // here only affects the player when the activity really goes away.
+        mView.post(mSuspend);
+    }
+
+    /**
+     * @return The object to return from the activity's
+     * onRetainNonConfigurationInstance().
+     */
+    public Object onRetainNonConfigurationInstance() {
+        DetachedPlayback playback = mView.detachPlayback();
+        mRetained = playback != null;
+        return playback;
+    }
+
+    public void onDestroy() {
+        mView.removeCallbacks(mSuspend);
+        if (!mRetained) {
+            mView.stopPlayback();
+        }
+    }
+
+    private final Runnable mSuspend = new Runnable() {
+        public void run() {
+            mView.suspend();
+        }
+    };
+}
@@ -0,0 +1,128 @@
+package ru.denivip.android.video;
+
+import android.os.Handler;
+import android.os.Message;
+
+/**
+ * Delivers the events of a {@link VideoView} to its {@link PlaybackObserver}s.
+ * <p>
+ * The observers are kept in an array that is copied when an observer is added
+ * or removed, so delivering an event allocates nothing and observers may add
+ * or remove themselves while being called. State changes and errors are
+ * delivered right away. Positions are conflated: a position published while
+ * the previous one is still waiting to be delivered replaces it.
+ * <p>
+ * While the view is playing and has observers, the stream ticks every
+ * {@link #TICK_INTERVAL} milliseconds to publish the position, so the
+ * observers don't have to poll the player themselves.
+ */
+final class PlaybackStateStream {
+    static final int TICK_INTERVAL = 250;
+
+    private static final int MSG_POSITION = 1;
+    private static final int MSG_TICK = 2;
+    private static final PlaybackObserver[] EMPTY = new PlaybackObserver[0];
+
+    private final VideoView mView;
+    private volatile PlaybackObserver[] mObservers = EMPTY;
+
+    // used on the UI thread only
+    private int mPosition;
+    private int mDuration;
+    private boolean mPositionPending;
+    private boolean mTicking;
+
+    PlaybackStateStream(VideoView view) {
+        mView = view;
+    }
+
+    synchronized void add(PlaybackObserver observer) {
+        PlaybackObserver[] old = mObservers;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == observer) {
+                return;
+            }
+        }
+        PlaybackObserver[] observers = new PlaybackObserver[old.length + 1];
+        System.arraycopy(old, 0, observers, 0, old.length);
+        observers[old.length] = observer;
+        mObservers = observers;
+    }
+
+    synchronized void remove(PlaybackObserver observer) {
+        PlaybackObserver[] old = mObservers;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == observer) {
+                PlaybackObserver[] observers = EMPTY;
+                if (old.length > 1) {
+                    observers = new PlaybackObserver[old.length - 1];
+                    System.arraycopy(old, 0, observers, 0, i);
+                    System.arraycopy(old, i + 1, observers, i, old.length - i - 1);
+                }
+                mObservers = observers;
+                return;
+            }
+        }
+    }
+
+    boolean hasObservers() {
+        return mObservers.length > 0;
+    }
+
+    void publishState(int state) {
+        PlaybackObserver[] observers = mObservers;
+        for (int i = 0; i < observers.length; i++) {
+            observers[i].onPlaybackStateChanged(state);
+        }
+    }
+
+    void publishError(int what, int extra) {
+        PlaybackObserver[] observers = mObservers;
+        for (int i = 0; i < observers.length; i++) {
+            observers[i].onPlaybackError(what, extra);
+        }
+    }
+
+    void publishPosition(int position, int duration) {
+        mPosition = position;
+        mDuration = duration;
+        if (!mPositionPending && hasObservers()) {
+            mPositionPending = true;
+            mHandler.sendEmptyMessage(MSG_POSITION);
+        }
+    }
+
+    /**
+     * Start or stop publishing the position periodically.
+     */
+    void setTicking(boolean ticking) {
+        if (ticking == mTicking) {
+            return;
+        }
+        mTicking = ticking;
+        if (ticking) {
+            mHandler.sendEmptyMessage(MSG_TICK);
+        } else {
+            mHandler.removeMessages(MSG_TICK);
+        }
+    }
+
+    private Handler mHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_POSITION:
+                    mPositionPending = false;
+                    PlaybackObserver[] observers = mObservers;
+                    for (int i = 0; i < observers.length; i++) {
+                        observers[i].onPositionChanged(mPosition, mDuration);
+                    }
+                    break;
+                case MSG_TICK:
+                    publishPosition(mView.getCurrentPosition(), mView.getDuration());
+                    sendEmptyMessageDelayed(MSG_TICK, TICK_INTERVAL);
+                    break;
+            }
+        }
+    };
+}
@@ -0,0 +1,362 @@
+package ru.denivip.android.video;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Poster frames of videos, shown by {@link VideoView} while a video is being
+ * opened so that the view isn't black until the first frame is decoded.
+ * <p>
+ * A poster is a frame of the video downsampled to {@link #POSTER_WIDTH}. It is
+ * extracted on a background thread the first time it is needed and kept in
+ * two tiers: a memory tier bounded by size, and JPEG files in the cache
+ * directory that survive the process. Bitmaps leaving the memory tier are
+ * kept in a small pool and reused for the next poster of the same size.
+ * <p>
+ * Posters are reference counted: each one handed out must be given back
+ * with {@link #release} once it is no longer shown.
+ */
+public final class PosterCache {
+    private static final String TAG = "PosterCache";
+
+    /** The width posters are downsampled to, in pixels. */
+    public static final int POSTER_WIDTH = 320;
+
+    private static final int MAX_MEMORY_BYTES = 2 * 1024 * 1024;
+    private static final int MAX_DISK_FILES = 200;
+    private static final int MAX_QUEUED = 8;
+    private static final int JPEG_QUALITY = 80;
+    private static final long DEFAULT_FRAME_TIME_US = 1000000;
+
+    /**
+     * Interface definition of a callback to be invoked on the UI thread when
+     * a requested poster is ready.
+     */
+    public interface OnPosterLoadedListener {
+        /**
+         * @param poster The poster, which the listener must release, or null
+         * if no frame could be extracted.
+         */
+        void onPosterLoaded(Uri uri, Poster poster);
+    }
+
+    /**
+     * A poster handed out by the cache.
+     */
+    public static final class Poster {
+        final String mKey;
+        final Bitmap mBitmap;
+        int mRefs;         // guarded by the cache
+        boolean mEvicted;  // guarded by the cache
+
+        Poster(String key, Bitmap bitmap) {
+            mKey = key;
+            mBitmap = bitmap;
+        }
+
+        public Bitmap getBitmap() {
+            return mBitmap;
+        }
+    }
+
+    private static PosterCache sInstance;
+
+    private final Context mContext;
+    private final File mDir;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final BitmapPool mPool = new BitmapPool(4);
+    private final Paint mScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);  // used by the worker only
+    private final ThreadPoolExecutor mExecutor;
+
+    // guarded by this
+    private final LinkedHashMap<String, Poster> mMemory =
+            new LinkedHashMap<String, Poster>(16, 0.75f, true);
+    private int mMemoryBytes;
+    private final HashMap<String, ArrayList<OnPosterLoadedListener>> mPending =
+            new HashMap<String, ArrayList<OnPosterLoadedListener>>();
+
+    public static synchronized PosterCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PosterCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PosterCache(Context context) {
+        mContext = context;
+        mDir = new File(context.getCacheDir(), "posters");
+        // one worker, and only the latest requests are kept when the user
+        // scrolls through more videos than can be extracted
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED), new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                LoadTask oldest = (LoadTask) executor.getQueue().poll();
+                if (oldest != null) {
+                    synchronized (PosterCache.this) {
+                        mPending.remove(oldest.mKey);
+                    }
+                    executor.execute(r);
+                }
+            }
+        });
+    }
+
+    /**
+     * Take a poster from the memory tier. Never touches the disk.
+     *
+     * @return The poster, which the caller must release, or null if it isn't
+     * in memory.
+     */
+    public synchronized Poster acquire(Uri uri) {
+        Poster poster = mMemory.get(keyOf(uri));
+        if (poster != null) {
+            poster.mRefs++;
+        }
+        return poster;
+    }
+
+    /**
+     * Load the poster from disk, or extract it from the video, in the
+     * background. The listener is called on the UI thread.
+     */
+    public void request(Uri uri, OnPosterLoadedListener l) {
+        String key = keyOf(uri);
+        Poster poster;
+        synchronized (this) {
+            poster = mMemory.get(key);
+            if (poster != null) {
+                poster.mRefs++;
+            } else {
+                ArrayList<OnPosterLoadedListener> listeners = mPending.get(key);
+                if (listeners != null) {
+                    listeners.add(l);
+                    return;
+                }
+                listeners = new ArrayList<OnPosterLoadedListener>();
+                listeners.add(l);
+                mPending.put(key, listeners);
+            }
+        }
+        if (poster != null) {
+            l.onPosterLoaded(uri, poster);
+        } else {
+            mExecutor.execute(new LoadTask(uri, key));
+        }
+    }
+
+    /**
+     * Give back a poster that is no longer shown.
+     */
+    public synchronized void release(Poster poster) {
+        if (--poster.mRefs == 0 && poster.mEvicted) {
+            mPool.put(poster.mBitmap);
+        }
+    }
+
+    /**
+     * Drop the memory tier. The application should call this from its own
+     * onLowMemory() callback.
+     */
+    public synchronized void onLowMemory() {
+        for (Iterator<Poster> it = mMemory.values().iterator(); it.hasNext(); ) {
+            Poster poster = it.next();
+            it.remove();
+            poster.mEvicted = true;
+            if (poster.mRefs == 0) {
+                poster.mBitmap.recycle();
+            }
+        }
+        mMemoryBytes = 0;
+        mPool.clear();
+    }
+
+    private final class LoadTask implements Runnable {
+        final Uri mUri;
+        final String mKey;
+
+        LoadTask(Uri uri, String key) {
+            mUri = uri;
+            mKey = key;
+        }
+
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            File file = new File(mDir, mKey + ".jpg");
+            Bitmap bitmap = decode(file);
+            if (bitmap == null) {
+                bitmap = extract(mUri);
+                if (bitmap != null) {
+                    write(bitmap, file);
+                }
+            }
+
+            final Poster poster;
+            final ArrayList<OnPosterLoadedListener> listeners;
+            synchronized (PosterCache.this) {
+                listeners = mPending.remove(mKey);
+                if (listeners == null) {
+                    // nobody waits for it any more, keep the result anyway
+                    if (bitmap != null) {
+                        putLocked(new Poster(mKey, bitmap));
+                    }
+                    return;
+                }
+                poster = bitmap != null ? putLocked(new Poster(mKey, bitmap)) : null;
+                if (poster != null) {
+                    poster.mRefs += listeners.size();
+                }
+            }
+            mMainHandler.post(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < listeners.size(); i++) {
+                        listeners.get(i).onPosterLoaded(mUri, poster);
+                    }
+                }
+            });
+        }
+    }
+
+    private Poster putLocked(Poster poster) {
+        Poster old = mMemory.put(poster.mKey, poster);
+        if (old != null) {
+            evictLocked(old);
+        }
+        mMemoryBytes += sizeOf(poster.mBitmap);
+        Iterator<Poster> it = mMemory.values().iterator();
+        while (mMemoryBytes > MAX_MEMORY_BYTES && it.hasNext()) {
+            Poster eldest = it.next();
+            if (eldest == poster) {
+                break;
+            }
+            it.remove();
+            evictLocked(eldest);
+        }
+        return poster;
+    }
+
+    private void evictLocked(Poster poster) {
+        mMemoryBytes -= sizeOf(poster.mBitmap);
+        poster.mEvicted = true;
+        if (poster.mRefs == 0) {
+            mPool.put(poster.mBitmap);
+        }
+    }
+
+    private static int sizeOf(Bitmap b) {
+        return b.getRowBytes() * b.getHeight();
+    }
+
+    private Bitmap extract(Uri uri) {
+        long timeUs = DEFAULT_FRAME_TIME_US;
+        MediaInfoCache.Entry info = MediaInfoCache.getInstance(mContext).get(uri);
+        if (info != null && info.mDuration > 0) {
+            // past the opening titles, which are often black
+            timeUs = Math.min(info.mDuration / 10, 10000) * 1000L;
+        }
+        Bitmap frame = MediaPlayerInternals.captureFrame(mContext, uri, timeUs);
+        return frame != null ? downsample(frame) : null;
+    }
+
+    private Bitmap decode(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap decoded = BitmapFactory.decodeFile(file.getPath(), options);
+        if (decoded == null) {
+            file.delete();
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return downsample(decoded);
+    }
+
+    /*
+     * Draw the source into a pooled bitmap of the poster size and recycle it.
+     */
+    private Bitmap downsample(Bitmap src) {
+        int width = Math.min(POSTER_WIDTH, src.getWidth());
+        int height = Math.max(1, src.getHeight() * width / src.getWidth());
+        Bitmap poster = mPool.get(width, height, Bitmap.Config.RGB_565);
+        new Canvas(poster).drawBitmap(src, null, new Rect(0, 0, width, height), mScalePaint);
+        src.recycle();
+        return poster;
+    }
+
+    private void write(Bitmap bitmap, File file) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(tmp));
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "Unable to replace " + file);
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to save poster", ex);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    // nothing to do
+                }
+            }
+        }
+        trimDisk();
+    }
+
+    /*
+     * Delete the least recently used files above the limit.
+     */
+    private void trimDisk() {
+        File[] files = mDir.listFiles();
+        if (files == null || files.length <= MAX_DISK_FILES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < files.length - MAX_DISK_FILES; i++) {
+            files[i].delete();
+        }
+    }
+
+    private static String keyOf(Uri uri) {
+        return Long.toHexString(BookmarkStore.hash(uri.toString()));
+    }
+}
@@ -0,0 +1,130 @@
+package ru.denivip.android.video;
+
+import java.util.ArrayList;
+
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+
+/**
+ * A single timer for the progress updates of all visible controllers.
+ * <p>
+ * Each {@link Client} tells after every tick how long to wait until the next
+ * one. Ticks are aligned to {@link #FRAME_INTERVAL}, and the clients that are
+ * due within the same frame are updated together, so several controllers
+ * cost one wakeup per frame at most. When no client is left, no message is
+ * queued at all.
+ * <p>
+ * The ticker is used on the UI thread only.
+ */
+final class ProgressTicker {
+    static final int FRAME_INTERVAL = 16;
+    static final int MIN_INTERVAL = FRAME_INTERVAL;
+    static final int MAX_INTERVAL = 1000;
+
+    private static final int MSG_TICK = 1;
+
+    private static ProgressTicker sInstance;
+
+    /**
+     * Receives the ticks.
+     */
+    static abstract class Client {
+        private long mNextTick;
+
+        /**
+         * @return The milliseconds until the next tick, or a negative value
+         * to stop ticking.
+         */
+        abstract int onTick();
+    }
+
+    private final ArrayList<Client> mClients = new ArrayList<Client>();
+    private long mScheduled = -1;
+
+    private ProgressTicker() {
+    }
+
+    static ProgressTicker getInstance() {
+        if (sInstance == null) {
+            sInstance = new ProgressTicker();
+        }
+        return sInstance;
+    }
+
+    /**
+     * The interval after which the thumb of a progress bar moves by a pixel.
+     *
+     * @param duration The duration of the media in milliseconds.
+     * @param width The width of the progress track in pixels.
+     */
+    static int getInterval(int duration, int width) {
+        if (duration <= 0 || width <= 0) {
+            return MAX_INTERVAL;
+        }
+        return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, duration / width));
+    }
+
+    /**
+     * Tick the client as soon as possible, and then as often as it asks.
+     */
+    void add(Client client) {
+        if (!mClients.contains(client)) {
+            mClients.add(client);
+        }
+        client.mNextTick = SystemClock.uptimeMillis();
+        schedule(client.mNextTick);
+    }
+
+    void remove(Client client) {
+        mClients.remove(client);
+        if (mClients.isEmpty()) {
+            mHandler.removeMessages(MSG_TICK);
+            mScheduled = -1;
+        }
+    }
+
+    private void schedule(long time) {
+        if (mScheduled >= 0 && mScheduled <= time) {
+            return;
+        }
+        mHandler.removeMessages(MSG_TICK);
+        mHandler.sendEmptyMessageAtTime(MSG_TICK, time);
+        mScheduled = time;
+    }
+
+    private void tick() {
+        mScheduled = -1;
+        long now = SystemClock.uptimeMillis();
+        long next = Long.MAX_VALUE;
+        for (int i = mClients.size() - 1; i >= 0; i--) {
+            Client client = mClients.get(i);
+            if (client.mNextTick < now + FRAME_INTERVAL) {
+                int interval = client.onTick();
+                if (interval < 0) {
+                    // the client may have removed itself already
+                    mClients.remove(client);
+                    continue;
+                }
+                // round up to a frame, so clients with similar rates meet
+                long due = now + interval;
+                client.mNextTick = due + FRAME_INTERVAL - 1 - (due + FRAME_INTERVAL - 1) % FRAME_INTERVAL;
+            }
+            next = Math.min(next, client.mNextTick);
+            // a client may have removed others while ticking
+            i = Math.min(i, mClients.size());
+        }
+        if (next != Long.MAX_VALUE) {
+            schedule(next);
+        }
+    }
+
+    private final Handler mHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_TICK) {
+                tick();
+            }
+        }
+    };
+}
@@ -0,0 +1,159 @@
+package ru.denivip.android.video;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * What {@link VideoView} needs to continue a playback whose player had to be
+ * released because the platform doesn't support suspend: the URI, the
+ * position and what was learned about the stream while it was prepared.
+ * <p>
+ * The snapshot is kept in a file, so the playback can be continued with
+ * {@link VideoView#resumeFromSnapshot()} even after the process was killed.
+ * Only the latest snapshot is kept.
+ */
+public final class ResumeSnapshot {
+    private static final String TAG = "ResumeSnapshot";
+    private static final String FILE_NAME = "videoview-resume";
+    private static final int VERSION = 1;
+
+    final Uri     mUri;
+    final int     mPosition;
+    final int     mVideoWidth;
+    final int     mVideoHeight;
+    final boolean mCanPause;
+    final boolean mCanSeekBack;
+    final boolean mCanSeekForward;
+
+    ResumeSnapshot(Uri uri, int position, int videoWidth, int videoHeight,
+            boolean canPause, boolean canSeekBack, boolean canSeekForward) {
+        mUri = uri;
+        mPosition = position;
+        mVideoWidth = videoWidth;
+        mVideoHeight = videoHeight;
+        mCanPause = canPause;
+        mCanSeekBack = canSeekBack;
+        mCanSeekForward = canSeekForward;
+    }
+
+    public Uri getUri() {
+        return mUri;
+    }
+
+    /**
+     * @return The position to continue from, in milliseconds.
+     */
+    public int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Write the snapshot in the background, replacing the previous one.
+     */
+    void save(Context context) {
+        final File file = getFile(context);
+        IoThread.post(new Runnable() {
+            public void run() {
+                write(file);
+            }
+        });
+    }
+
+    private void write(File file) {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmp));
+            out.writeInt(VERSION);
+            out.writeUTF(mUri.toString());
+            out.writeInt(mPosition);
+            out.writeInt(mVideoWidth);
+            out.writeInt(mVideoHeight);
+            out.writeBoolean(mCanPause);
+            out.writeBoolean(mCanSeekBack);
+            out.writeBoolean(mCanSeekForward);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "Unable to replace " + file);
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to save snapshot", ex);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Read the latest snapshot. The file is tiny, so this is fine to call on
+     * the UI thread.
+     *
+     * @return The snapshot, or null if there is none.
+     */
+    static ResumeSnapshot load(Context context) {
+        return read(getFile(context));
+    }
+
+    private static ResumeSnapshot read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            return new ResumeSnapshot(Uri.parse(in.readUTF()), in.readInt(),
+                    in.readInt(), in.readInt(),
+                    in.readBoolean(), in.readBoolean(), in.readBoolean());
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to load snapshot", ex);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Forget the snapshot once the playback has been continued, unless it
+     * was replaced by the snapshot of another video in the meantime.
+     *
+     * @param uri The video that was continued.
+     */
+    static void clear(Context context, final Uri uri) {
+        final File file = getFile(context);
+        IoThread.post(new Runnable() {
+            public void run() {
+                // after any pending save, so this sees the latest snapshot
+                ResumeSnapshot latest = read(file);
+                if (latest == null || latest.mUri.equals(uri)) {
+                    file.delete();
+                }
+            }
+        });
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException ex) {
+                // nothing to do
+            }
+        }
+    }
+}
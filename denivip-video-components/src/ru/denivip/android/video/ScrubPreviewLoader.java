@@ -0,0 +1,165 @@
+package ru.denivip.android.video;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Process;
+import android.widget.ImageView;
+
+/**
+ * Shows the tiles of a {@link ScrubPreviewProvider} in an ImageView.
+ * <p>
+ * Tiles are loaded one at a time on a background thread, which all loaders
+ * share and which ends when idle for a while. While one loads the
+ * thumb may move on, so only the tile wanted last is loaded next and the ones
+ * passed over in between are never loaded at all. The most recently shown
+ * tiles are kept in a small window; all other tiles are recycled.
+ */
+final class ScrubPreviewLoader {
+    private static final int MAX_TILES = 8;
+    private static final int IDLE_SECONDS = 10;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(0, 1,
+            IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "ScrubPreviewLoader");
+        }
+    });
+
+    private final ScrubPreviewProvider mProvider;
+    private final ImageView mView;
+    private final Handler mHandler = new Handler();
+
+    // used on the UI thread only
+    private final LinkedHashMap<Integer, Bitmap> mTiles =
+            new LinkedHashMap<Integer, Bitmap>(MAX_TILES, 0.75f, true);
+    private int mShownIndex = -1;
+    private int mCurrentIndex = -1;
+    private volatile boolean mReleased;
+
+    private volatile int mWantedIndex = -1;
+    private final AtomicBoolean mLoadScheduled = new AtomicBoolean();
+
+    ScrubPreviewLoader(ScrubPreviewProvider provider, ImageView view) {
+        mProvider = provider;
+        mView = view;
+        sExecutor.execute(new Runnable() {
+            public void run() {
+                mProvider.prepare();
+            }
+        });
+    }
+
+    /**
+     * Show the tile previewing the position. Keeps showing the previous tile
+     * until that one has been loaded.
+     *
+     * @return Whether there is a tile for the position.
+     */
+    boolean show(int position, int duration) {
+        int index = mProvider.getTileIndex(position, duration);
+        mCurrentIndex = index;
+        if (index < 0) {
+            return false;
+        }
+        if (index == mShownIndex) {
+            return true;
+        }
+        Bitmap tile = mTiles.get(index);
+        if (tile != null) {
+            showTile(index, tile);
+        } else {
+            load(index);
+        }
+        return true;
+    }
+
+    /**
+     * Stop showing tiles. The window is kept for the next drag.
+     */
+    void hide() {
+        mCurrentIndex = -1;
+        mWantedIndex = -1;
+    }
+
+    /**
+     * Drop all tiles. Loads still queued do nothing.
+     */
+    void release() {
+        mReleased = true;
+        mView.setImageBitmap(null);
+        mShownIndex = -1;
+        for (Bitmap tile : mTiles.values()) {
+            tile.recycle();
+        }
+        mTiles.clear();
+    }
+
+    private void load(int index) {
+        mWantedIndex = index;
+        if (mLoadScheduled.compareAndSet(false, true)) {
+            sExecutor.execute(mLoad);
+        }
+    }
+
+    private Runnable mLoad = new Runnable() {
+        public void run() {
+            mLoadScheduled.set(false);
+            final int index = mWantedIndex;
+            if (index < 0 || mReleased) {
+                return;
+            }
+            final Bitmap tile = mProvider.loadTile(index);
+            if (tile == null) {
+                return;
+            }
+            mHandler.post(new Runnable() {
+                public void run() {
+                    onTileLoaded(index, tile);
+                }
+            });
+        }
+    };
+
+    private void onTileLoaded(int index, Bitmap tile) {
+        if (mReleased) {
+            tile.recycle();
+            return;
+        }
+        Bitmap old = mTiles.put(index, tile);
+        if (old != null && old != tile && index != mShownIndex) {
+            old.recycle();
+        }
+        Iterator<Map.Entry<Integer, Bitmap>> it = mTiles.entrySet().iterator();
+        while (mTiles.size() > MAX_TILES && it.hasNext()) {
+            Map.Entry<Integer, Bitmap> eldest = it.next();
+            int key = eldest.getKey().intValue();
+            if (key != mShownIndex && key != index) {
+                it.remove();
+                eldest.getValue().recycle();
+            }
+        }
+        if (index == mCurrentIndex) {
+            showTile(index, tile);
+        }
+    }
+
+    private void showTile(int index, Bitmap tile) {
+        mView.setImageBitmap(tile);
+        mShownIndex = index;
+    }
+}
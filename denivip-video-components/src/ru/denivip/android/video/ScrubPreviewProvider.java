@@ -0,0 +1,38 @@
+package ru.denivip.android.video;
+
+import android.graphics.Bitmap;
+
+/**
+ * Source of the preview thumbnails the {@link MediaController} shows above
+ * the progress thumb while it is dragged.
+ * <p>
+ * The timeline is divided into tiles, each previewed by one image. Tiles are
+ * loaded on a background thread and only a few of them are kept in memory.
+ *
+ * @see WebVttThumbnailProvider
+ * @see FrameThumbnailProvider
+ */
+public interface ScrubPreviewProvider {
+    /**
+     * Called once on the background thread before any tile is loaded, e.g.
+     * to fetch an index of the tiles.
+     */
+    void prepare();
+
+    /**
+     * Called on the UI thread for every move of the thumb, so it must be
+     * cheap.
+     *
+     * @param position The position in milliseconds.
+     * @param duration The duration of the video in milliseconds.
+     * @return The tile previewing the position, or -1 if there is none.
+     */
+    int getTileIndex(int position, int duration);
+
+    /**
+     * Called on the background thread.
+     *
+     * @return The image of the tile, or null if it can't be loaded.
+     */
+    Bitmap loadTile(int index);
+}
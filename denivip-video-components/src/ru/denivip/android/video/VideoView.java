@@ -17,18 +17,24 @@
 package ru.denivip.android.video;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnErrorListener;
 import android.media.Metadata;
 import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -54,17 +60,22 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
     private Uri         mUri;
     private int         mDuration;
 
-    // all possible internal states
-    private static final int STATE_ERROR              = -1;
-    private static final int STATE_IDLE               = 0;
-    private static final int STATE_PREPARING          = 1;
-    private static final int STATE_PREPARED           = 2;
-    private static final int STATE_PLAYING            = 3;
-    private static final int STATE_PAUSED             = 4;
-    private static final int STATE_PLAYBACK_COMPLETED = 5;
-    private static final int STATE_SUSPEND            = 6;
-    private static final int STATE_RESUME             = 7;
-    private static final int STATE_SUSPEND_UNSUPPORTED = 8;
+    // all possible internal states, reported to PlaybackObservers
+    public static final int STATE_ERROR              = -1;
+    public static final int STATE_IDLE               = 0;
+    public static final int STATE_PREPARING          = 1;
+    public static final int STATE_PREPARED           = 2;
+    public static final int STATE_PLAYING            = 3;
+    public static final int STATE_PAUSED             = 4;
+    public static final int STATE_PLAYBACK_COMPLETED = 5;
+    public static final int STATE_SUSPEND            = 6;
+    public static final int STATE_RESUME             = 7;
+    public static final int STATE_SUSPEND_UNSUPPORTED = 8;
+
+    // Before Ice Cream Sandwich a running player ignores setDisplay(null) and
+    // never renders to a new display, so it is reopened at its position on
+    // the new surface instead of being moved there.
+    private static final boolean CAN_MOVE_DISPLAY = Build.VERSION.SDK_INT >= 14;
 
     // mCurrentState is a VideoView object's current state.
     // mTargetState is the state that a method caller intends to reach.
@@ -85,6 +96,9 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
     private OnCompletionListener mOnCompletionListener;
     private MediaPlayer.OnPreparedListener mOnPreparedListener;
     private int         mCurrentBufferPercentage;
+    private final BufferedRanges mBufferedRanges = new BufferedRanges();
+    private final PlaybackClock mClock = new PlaybackClock();
+    private final PlaybackStateStream mStateStream = new PlaybackStateStream(this);
     private OnErrorListener mOnErrorListener;
     private int         mSeekWhenPrepared;  // recording the seek position while preparing
     private boolean     mCanPause;
@@ -95,7 +109,60 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
     private float		  mSetLeftVolumeWhenPrepared;
     private float		  mSetRightVolumeWhenPrepared;
 
-	private ViewGroup 	  mFullScreenLayout;
+
+    // playlist support: the next item is prepared on a second player while
+    // the current one plays, and swapped onto the surface on completion
+    private List<Uri>   mPlaylist;
+    private int         mPlaylistIndex;
+    private MediaPlayer mNextPlayer;
+    private boolean     mNextPrepared;
+    private boolean     mSwapWhenNextPrepared;
+    private long        mCompletionTime;
+    private long        mLastItemGap = -1;
+    private OnPlaylistItemChangedListener mOnPlaylistItemChangedListener;
+
+    // set while the view is being moved to another parent on purpose, so
+    // that the player survives the loss of the surface
+    private boolean     mMovingSurface;
+    // keep the player running when the surface is destroyed, see
+    // setKeepPlayingOnSurfaceLoss()
+    private boolean     mKeepPlayingOnSurfaceLoss;
+    // the player is alive but has no surface to render to
+    private boolean     mDisplayDetached;
+    private long        mFullscreenSwitchStart;
+    private long        mLastFullscreenSwitchTime = -1;
+    private long        mReattachStart;
+    private long        mLastReattachTime = -1;
+    private long        mOpenTime;
+    // the playback was continued from a ResumeSnapshot that is still on disk
+    private boolean     mResumingFromSnapshot;
+    private boolean     mDeferOpen;
+    private boolean     mOpenRequested;
+    // stop deferring once the pending start() or preload() opened a player
+    private boolean     mUndeferOnOpen;
+    private boolean     mDecoderReclaimed;
+    // pushed by a FeedPlaybackScheduler, or -1
+    private int         mScheduledPriority = -1;
+    private final Rect  mVisibleRect = new Rect();
+    private BookmarkStore mBookmarkStore;
+    // what the previous prepare of mUri found out, if anything
+    private MediaInfoCache.Entry mKnownInfo;
+    // shown as the background until the first frame is rendered
+    private boolean     mPosterEnabled;
+    private PosterCache.Poster mPoster;
+    private int         mPosterPlayingFrom = -1;
+
+    /**
+     * Interface definition for a callback to be invoked when playback moves
+     * on to another item of the playlist.
+     */
+    public interface OnPlaylistItemChangedListener {
+        /**
+         * @param view The VideoView playing the playlist
+         * @param index The index of the item that is now playing
+         */
+        void onPlaylistItemChanged(VideoView view, int index);
+    }
 
     public VideoView(Context context) {
         super(context);
@@ -104,7 +171,6 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
 
     public VideoView(Context context, AttributeSet attrs) {
         this(context, attrs, 0);
-        initVideoView();
     }
 
     public VideoView(Context context, AttributeSet attrs, int defStyle) {
@@ -164,9 +230,6 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
 }
 
     private void initVideoView() {
-        LayoutInflater inflater = (LayoutInflater) getContext().getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-		mFullScreenLayout = (ViewGroup) inflater.inflate(R.layout.fullscreen, null);
-    	
         mVideoWidth = 0;
         mVideoHeight = 0;
         getHolder().addCallback(mSHCallback);
@@ -174,7 +237,7 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
         setFocusable(true);
         setFocusableInTouchMode(true);
         requestFocus();
-        mCurrentState = STATE_IDLE;
+        setCurrentState(STATE_IDLE);
         mTargetState  = STATE_IDLE;
     }
 
@@ -183,21 +246,98 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
     }
 
     public void setVideoURI(Uri uri) {
+        releaseNext();
+        mPlaylist = null;
+        openUri(uri);
+    }
+
+    /**
+     * Play the given items one after another. Each next item is prepared
+     * while the current one plays, so that the switch at the end of an item
+     * doesn't wait for the player to open and buffer the next one. This
+     * takes a second decoder, and is skipped while none is free.
+     * The completion listener is called once the last item has finished,
+     * and the prepared listener once for every item. While the next item is
+     * still preparing at the end of the current one, the view is in the
+     * preparing state.
+     *
+     * @param items The URIs to play, in order.
+     */
+    public void setPlaylist(List<Uri> items) {
+        releaseNext();
+        mPlaylist = new ArrayList<Uri>(items);
+        mPlaylistIndex = 0;
+        if (!mPlaylist.isEmpty()) {
+            openUri(mPlaylist.get(0));
+        }
+    }
+
+    /**
+     * @return The index of the playlist item being played, or -1 if no
+     * playlist was set.
+     */
+    public int getPlaylistIndex() {
+        return mPlaylist != null ? mPlaylistIndex : -1;
+    }
+
+    /**
+     * The time the view took to switch to a prepared next item: from the
+     * completion of the previous item until start() was called on the next
+     * one. It doesn't include the time until the first frame of the next
+     * item is rendered, so it is a lower bound of the gap that is seen and
+     * heard, meant for logging.
+     *
+     * @return The time in milliseconds, or -1 if the current item wasn't
+     * prepared ahead or playback hasn't moved to another item yet.
+     */
+    public long getLastItemGap() {
+        return mLastItemGap;
+    }
+
+    /**
+     * Register a callback to be invoked when playback moves on to another
+     * item of the playlist.
+     *
+     * @param l The callback that will be run
+     */
+    public void setOnPlaylistItemChangedListener(OnPlaylistItemChangedListener l) {
+        mOnPlaylistItemChangedListener = l;
+    }
+
+    private void openUri(Uri uri) {
         mUri = uri;
-        mSeekWhenPrepared = 0;
+        mSeekWhenPrepared = mBookmarkStore != null ? mBookmarkStore.get(uri) : 0;
+        mKnownInfo = MediaInfoCache.getInstance(getContext()).get(uri);
+        if (mKnownInfo != null) {
+            // lay out and show the timeline now rather than once prepared
+            mVideoWidth = mKnownInfo.mVideoWidth;
+            mVideoHeight = mKnownInfo.mVideoHeight;
+            mCanPause = mKnownInfo.mCanPause;
+            mCanSeekBack = mKnownInfo.mCanSeekBack;
+            mCanSeekForward = mKnownInfo.mCanSeekForward;
+        }
         mSetLeftVolumeWhenPrepared = 0;
         mSetRightVolumeWhenPrepared = 0;
+        mOpenRequested = false;
+        hidePoster();
+        if (mPosterEnabled) {
+            requestPoster(uri);
+        }
         openVideo();
         requestLayout();
         invalidate();
     }
 
     public void stopPlayback() {
+        releaseNext();
+        hidePoster();
+        mDecoderReclaimed = false;
+        DecoderGovernor.getInstance().release(mDecoderClient);
         if (mMediaPlayer != null) {
             mMediaPlayer.stop();
-            mMediaPlayer.release();
+            MediaPlayerPool.getInstance().recycle(mMediaPlayer);
             mMediaPlayer = null;
-            mCurrentState = STATE_IDLE;
+            setCurrentState(STATE_IDLE);
             mTargetState  = STATE_IDLE;
         }
     }
@@ -207,6 +347,14 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
             // not ready for playback just yet, will try again later
             return;
         }
+        if (mDeferOpen && !mOpenRequested) {
+            // waits for preload() or start()
+            return;
+        }
+        if (mUndeferOnOpen) {
+            mUndeferOnOpen = false;
+            mDeferOpen = false;
+        }
         // Tell the music playback service to pause
         // TODO: these constants need to be published somewhere in the framework.
         Intent i = new Intent("com.android.music.musicservicecommand");
@@ -214,10 +362,17 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
         getContext().sendBroadcast(i);
 
         // we shouldn't clear the target state, because somebody might have
-        // called start() previously
-        release(false);
+        // called start() previously. The decoder slot is kept for the new
+        // player.
+        releasePlayer(false);
+        mDecoderReclaimed = false;
+        if (!DecoderGovernor.getInstance().acquire(mDecoderClient)) {
+            // opened once a decoder is free, instead of failing to prepare
+            Log.d(TAG, "Waiting for a decoder: " + mUri);
+            return;
+        }
         try {
-            mMediaPlayer = new MediaPlayer();
+            mMediaPlayer = MediaPlayerPool.getInstance().acquire();
             mMediaPlayer.setOnPreparedListener(mPreparedListener);
             mMediaPlayer.setOnVideoSizeChangedListener(mSizeChangedListener);
             mDuration = -1;
@@ -225,6 +380,8 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
             mMediaPlayer.setOnErrorListener(mErrorListener);
             mMediaPlayer.setOnBufferingUpdateListener(mBufferingUpdateListener);
             mCurrentBufferPercentage = 0;
+            mBufferedRanges.clear();
+            mOpenTime = SystemClock.uptimeMillis();
             mMediaPlayer.setDataSource(getContext(), mUri);
             mMediaPlayer.setDisplay(mSurfaceHolder);
             mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
@@ -232,17 +389,17 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
             mMediaPlayer.prepareAsync();
             // we don't set the target state here either, but preserve the
             // target state that was there before.
-            mCurrentState = STATE_PREPARING;
+            setCurrentState(STATE_PREPARING);
             attachMediaController();
         } catch (IOException ex) {
             Log.w(TAG, "Unable to open content: " + mUri, ex);
-            mCurrentState = STATE_ERROR;
+            setCurrentState(STATE_ERROR);
             mTargetState = STATE_ERROR;
             mErrorListener.onError(mMediaPlayer, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
             return;
         } catch (IllegalArgumentException ex) {
             Log.w(TAG, "Unable to open content: " + mUri, ex);
-            mCurrentState = STATE_ERROR;
+            setCurrentState(STATE_ERROR);
             mTargetState = STATE_ERROR;
             mErrorListener.onError(mMediaPlayer, MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
             return;
@@ -251,7 +408,7 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
 
     public void setMediaController(MediaController controller) {
         if (mMediaController != null) {
-            mMediaController.hide();
+            mMediaController.removeWindow();
         }
         mMediaController = controller;
         attachMediaController();
@@ -280,20 +437,20 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
 
     MediaPlayer.OnPreparedListener mPreparedListener = new MediaPlayer.OnPreparedListener() {
         public void onPrepared(MediaPlayer mp) {
-            mCurrentState = STATE_PREPARED;
-
-            // Get the capabilities of the player for this stream
-            Metadata data = MediaPlayerInternals.getMetadata(mp, false, false);
-
-            if (data != null) {
-                mCanPause = !data.has(Metadata.PAUSE_AVAILABLE)
-                        || data.getBoolean(Metadata.PAUSE_AVAILABLE);
-                mCanSeekBack = !data.has(Metadata.SEEK_BACKWARD_AVAILABLE)
-                        || data.getBoolean(Metadata.SEEK_BACKWARD_AVAILABLE);
-                mCanSeekForward = !data.has(Metadata.SEEK_FORWARD_AVAILABLE)
-                        || data.getBoolean(Metadata.SEEK_FORWARD_AVAILABLE);
-            } else {
-                mCanPause = mCanSeekBack = mCanSeekForward = true;
+            setCurrentState(STATE_PREPARED);
+            if (mOpenTime != 0) {
+                Log.d(TAG, "Prepared in " + (SystemClock.uptimeMillis() - mOpenTime) + " ms");
+                mOpenTime = 0;
+            }
+            if (mResumingFromSnapshot) {
+                ResumeSnapshot.clear(getContext(), mUri);
+                mResumingFromSnapshot = false;
+            }
+
+            readCapabilities(mp);
+            syncClock();
+            if (isLocal(mUri)) {
+                mBufferedRanges.setAll(mp.getDuration());
             }
 
             if (mOnPreparedListener != null) {
@@ -305,7 +462,13 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
             mVideoWidth = mp.getVideoWidth();
             mVideoHeight = mp.getVideoHeight();
 
+            rememberMediaInfo(mp);
+
             int seekToPosition = mSeekWhenPrepared;  // mSeekWhenPrepared may be changed after seekTo() call
+            if (seekToPosition == 0 && mBookmarkStore != null) {
+                // the store may have finished loading while the player was preparing
+                seekToPosition = mBookmarkStore.get(mUri);
+            }
             if (seekToPosition != 0) {
                 seekTo(seekToPosition);
             }
@@ -343,14 +506,60 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
                     start();
                 }
             }
+
+            prepareNext();
         }
     };
 
+    // Get the capabilities of the player for this stream
+    private void readCapabilities(MediaPlayer mp) {
+        Metadata data = MediaPlayerInternals.getMetadata(mp, false, false);
+
+        if (data != null) {
+            mCanPause = !data.has(Metadata.PAUSE_AVAILABLE)
+                    || data.getBoolean(Metadata.PAUSE_AVAILABLE);
+            mCanSeekBack = !data.has(Metadata.SEEK_BACKWARD_AVAILABLE)
+                    || data.getBoolean(Metadata.SEEK_BACKWARD_AVAILABLE);
+            mCanSeekForward = !data.has(Metadata.SEEK_FORWARD_AVAILABLE)
+                    || data.getBoolean(Metadata.SEEK_FORWARD_AVAILABLE);
+        } else {
+            mCanPause = mCanSeekBack = mCanSeekForward = true;
+        }
+    }
+
+    private void rememberMediaInfo(MediaPlayer mp) {
+        mKnownInfo = new MediaInfoCache.Entry(mp.getDuration(),
+                mp.getVideoWidth(), mp.getVideoHeight(),
+                mCanPause, mCanSeekBack, mCanSeekForward);
+        MediaInfoCache.getInstance(getContext()).put(mUri, mKnownInfo);
+    }
+
     private MediaPlayer.OnCompletionListener mCompletionListener =
         new MediaPlayer.OnCompletionListener() {
         public void onCompletion(MediaPlayer mp) {
-            mCurrentState = STATE_PLAYBACK_COMPLETED;
+            if (mBookmarkStore != null) {
+                // watched to the end, start from the beginning next time
+                mBookmarkStore.remove(mUri);
+            }
+            if (hasNextItem()) {
+                mCompletionTime = SystemClock.uptimeMillis();
+                if (mNextPrepared) {
+                    swapToNext();
+                } else if (mNextPlayer != null) {
+                    // the next item is still preparing, switch as soon as it
+                    // is ready; nothing plays in the meantime
+                    mSwapWhenNextPrepared = true;
+                    mClock.sync(mMediaPlayer.getCurrentPosition(), false);
+                    setCurrentState(STATE_PREPARING);
+                } else {
+                    // preparing the next item failed, open it the usual way
+                    openNextItem();
+                }
+                return;
+            }
+            setCurrentState(STATE_PLAYBACK_COMPLETED);
             mTargetState = STATE_PLAYBACK_COMPLETED;
+            syncClock();
             if (mMediaController != null) {
                 mMediaController.hide();
             }
@@ -360,12 +569,193 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
         }
     };
 
+    private boolean hasNextItem() {
+        return mPlaylist != null && mPlaylistIndex + 1 < mPlaylist.size();
+    }
+
+    /*
+     * Open the next playlist item without the second player, so that its
+     * errors are reported like those of any other item.
+     */
+    private void openNextItem() {
+        // paused while waiting for the second player
+        boolean play = mTargetState == STATE_PLAYING;
+        mLastItemGap = -1;
+        mPlaylistIndex++;
+        openUri(mPlaylist.get(mPlaylistIndex));
+        if (play) {
+            start();
+        }
+        notifyPlaylistItemChanged();
+    }
+
+    /*
+     * Start preparing the next playlist item on a second player. It gets no
+     * display until it is swapped in.
+     */
+    private void prepareNext() {
+        if (!hasNextItem() || mNextPlayer != null) {
+            return;
+        }
+        if (!DecoderGovernor.getInstance().tryAcquire(mNextDecoderClient)) {
+            // the next item is opened the usual way at the end of this one
+            Log.d(TAG, "No decoder to prepare the next item on");
+            return;
+        }
+        Uri next = mPlaylist.get(mPlaylistIndex + 1);
+        mNextPrepared = false;
+        mSwapWhenNextPrepared = false;
+        mNextPlayer = MediaPlayerPool.getInstance().acquire();
+        try {
+            mNextPlayer.setOnPreparedListener(mNextPreparedListener);
+            mNextPlayer.setOnErrorListener(mNextErrorListener);
+            mNextPlayer.setDataSource(getContext(), next);
+            mNextPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            mNextPlayer.prepareAsync();
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to prepare next item: " + next, ex);
+            releaseNext();
+        } catch (IllegalArgumentException ex) {
+            Log.w(TAG, "Unable to prepare next item: " + next, ex);
+            releaseNext();
+        }
+    }
+
+    private void releaseNext() {
+        if (mNextPlayer != null) {
+            MediaPlayerPool.getInstance().recycle(mNextPlayer);
+            mNextPlayer = null;
+        }
+        mNextPrepared = false;
+        mSwapWhenNextPrepared = false;
+        DecoderGovernor.getInstance().release(mNextDecoderClient);
+    }
+
+    /*
+     * The decoder slot of the player preparing the next playlist item. It is
+     * only taken when free and given up to anyone who asks, unless the
+     * current item has completed and waits for it.
+     */
+    private final DecoderGovernor.Client mNextDecoderClient = new DecoderGovernor.Client() {
+        public int getDecoderPriority() {
+            return mSwapWhenNextPrepared
+                    ? DecoderGovernor.PRIORITY_PLAYING : DecoderGovernor.PRIORITY_BACKGROUND;
+        }
+
+        public boolean reclaimDecoder() {
+            if (mSwapWhenNextPrepared) {
+                return false;
+            }
+            releaseNext();
+            return true;
+        }
+
+        public void onDecoderGranted() {
+            // never waits
+            DecoderGovernor.getInstance().release(this);
+        }
+    };
+
+    /*
+     * Put the prepared next item in place of the completed one.
+     */
+    private void swapToNext() {
+        MediaPlayer next = mNextPlayer;
+        mNextPlayer = null;
+        mNextPrepared = false;
+        mSwapWhenNextPrepared = false;
+
+        MediaPlayerPool.getInstance().recycle(mMediaPlayer);
+        mMediaPlayer = next;
+        // the slot of this view moves on with the playback
+        DecoderGovernor.getInstance().release(mNextDecoderClient);
+        mPlaylistIndex++;
+        mUri = mPlaylist.get(mPlaylistIndex);
+
+        mMediaPlayer.setOnPreparedListener(mPreparedListener);
+        mMediaPlayer.setOnVideoSizeChangedListener(mSizeChangedListener);
+        mMediaPlayer.setOnCompletionListener(mCompletionListener);
+        mMediaPlayer.setOnErrorListener(mErrorListener);
+        mMediaPlayer.setOnBufferingUpdateListener(mBufferingUpdateListener);
+        if (mSurfaceHolder != null) {
+            mMediaPlayer.setDisplay(mSurfaceHolder);
+        }
+        mMediaPlayer.setScreenOnWhilePlaying(true);
+        mDuration = -1;
+        mCurrentBufferPercentage = 0;
+        mBufferedRanges.clear();
+        mSeekWhenPrepared = 0;
+        readCapabilities(mMediaPlayer);
+        rememberMediaInfo(mMediaPlayer);
+        if (isLocal(mUri)) {
+            mBufferedRanges.setAll(mMediaPlayer.getDuration());
+        }
+
+        setCurrentState(STATE_PREPARED);
+        if (mOnPreparedListener != null) {
+            mOnPreparedListener.onPrepared(mMediaPlayer);
+        }
+        if (mMediaController != null) {
+            mMediaController.setEnabled(true);
+        }
+        // paused while waiting for the next item
+        if (mTargetState == STATE_PLAYING) {
+            start();
+        }
+        mLastItemGap = SystemClock.uptimeMillis() - mCompletionTime;
+
+        mVideoWidth = mMediaPlayer.getVideoWidth();
+        mVideoHeight = mMediaPlayer.getVideoHeight();
+        if (mVideoWidth != 0 && mVideoHeight != 0) {
+            getHolder().setFixedSize(mVideoWidth, mVideoHeight);
+        }
+        notifyPlaylistItemChanged();
+        prepareNext();
+    }
+
+    private void notifyPlaylistItemChanged() {
+        if (mOnPlaylistItemChangedListener != null) {
+            mOnPlaylistItemChangedListener.onPlaylistItemChanged(this, mPlaylistIndex);
+        }
+    }
+
+    private MediaPlayer.OnPreparedListener mNextPreparedListener =
+        new MediaPlayer.OnPreparedListener() {
+        public void onPrepared(MediaPlayer mp) {
+            mNextPrepared = true;
+            if (mSwapWhenNextPrepared) {
+                swapToNext();
+            }
+        }
+    };
+
+    private MediaPlayer.OnErrorListener mNextErrorListener =
+        new MediaPlayer.OnErrorListener() {
+        public boolean onError(MediaPlayer mp, int framework_err, int impl_err) {
+            Log.d(TAG, "Next item error: " + framework_err + "," + impl_err);
+            boolean swapPending = mSwapWhenNextPrepared;
+            MediaPlayerPool.getInstance().discard(mNextPlayer);
+            mNextPlayer = null;
+            mNextPrepared = false;
+            mSwapWhenNextPrepared = false;
+            DecoderGovernor.getInstance().release(mNextDecoderClient);
+            if (swapPending) {
+                // the current item has already completed, try the next one
+                // once more on the regular player
+                openNextItem();
+            }
+            return true;
+        }
+    };
+
     private MediaPlayer.OnErrorListener mErrorListener =
         new MediaPlayer.OnErrorListener() {
         public boolean onError(MediaPlayer mp, int framework_err, int impl_err) {
             Log.d(TAG, "Error: " + framework_err + "," + impl_err);
-            mCurrentState = STATE_ERROR;
+            mStateStream.publishError(framework_err, impl_err);
+            setCurrentState(STATE_ERROR);
             mTargetState = STATE_ERROR;
+            hidePoster();
             if (mMediaController != null) {
                 mMediaController.hide();
             }
@@ -417,6 +807,7 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
         new MediaPlayer.OnBufferingUpdateListener() {
         public void onBufferingUpdate(MediaPlayer mp, int percent) {
             mCurrentBufferPercentage = percent;
+            mBufferedRanges.onBufferingUpdate(percent, getDuration());
         }
     };
 
@@ -485,8 +876,14 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
         public void surfaceCreated(SurfaceHolder holder)
         {
             mSurfaceHolder = holder;
+            if (mMediaPlayer != null && mDisplayDetached) {
+                // the player outlived the previous surface, just move it here
+                attachDisplay(holder);
+                if (mCurrentState == STATE_SUSPEND && mTargetState == STATE_RESUME) {
+                    resume();
+                }
             //resume() was called before surfaceCreated()
-            if (mMediaPlayer != null && mCurrentState == STATE_SUSPEND
+            } else if (mMediaPlayer != null && mCurrentState == STATE_SUSPEND
                    && mTargetState == STATE_RESUME) {
                 mMediaPlayer.setDisplay(mSurfaceHolder);
                 resume();
@@ -500,6 +897,20 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
             // after we return from this we can't use the surface any more
             mSurfaceHolder = null;
             if (mMediaController != null) mMediaController.hide();
+            if (mMovingSurface
+                    || (mKeepPlayingOnSurfaceLoss && mCurrentState != STATE_SUSPEND)) {
+                if (detachDisplay()) {
+                    return;
+                }
+                // keep the position and the target state, the player will be
+                // reopened on the new surface
+                if (isInPlaybackState()) {
+                    mSeekWhenPrepared = getCurrentPosition();
+                }
+                mFullscreenSwitchStart = 0;
+                release(false);
+                return;
+            }
             if (mCurrentState != STATE_SUSPEND) {
                 release(true);
             }
@@ -507,20 +918,75 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
     };
 
     /*
-     * release the media player in any state
+     * Take the player off the surface that is going away and keep it
+     * running. Returns false if there is nothing to keep or the platform
+     * doesn't let a running player change its display.
+     */
+    private boolean detachDisplay() {
+        if (!CAN_MOVE_DISPLAY || mMediaPlayer == null || mCurrentState == STATE_ERROR) {
+            return false;
+        }
+        try {
+            mMediaPlayer.setDisplay(null);
+        } catch (RuntimeException ex) {
+            Log.w(TAG, "Unable to detach display", ex);
+            return false;
+        }
+        mDisplayDetached = true;
+        return true;
+    }
+
+    private void attachDisplay(SurfaceHolder holder) {
+        mMediaPlayer.setDisplay(holder);
+        mDisplayDetached = false;
+        if (mFullscreenSwitchStart != 0) {
+            mLastFullscreenSwitchTime = SystemClock.uptimeMillis() - mFullscreenSwitchStart;
+            mFullscreenSwitchStart = 0;
+            Log.d(TAG, "Fullscreen switch took " + mLastFullscreenSwitchTime + " ms");
+        }
+        if (mReattachStart != 0) {
+            mLastReattachTime = SystemClock.uptimeMillis() - mReattachStart;
+            mReattachStart = 0;
+            Log.d(TAG, "Playback reattached " + mLastReattachTime + " ms after detach");
+        }
+    }
+
+    /*
+     * release the media player in any state, handing it back to the pool
+     * unless it failed (the media server may have died under it)
      */
     private void release(boolean cleartargetstate) {
+        releasePlayer(cleartargetstate);
+        // also stops waiting for a decoder
+        DecoderGovernor.getInstance().release(mDecoderClient);
+    }
+
+    private void releasePlayer(boolean cleartargetstate) {
         if (mMediaPlayer != null) {
-            mMediaPlayer.reset();
-            mMediaPlayer.release();
+            if (mCurrentState == STATE_ERROR) {
+                MediaPlayerPool.getInstance().discard(mMediaPlayer);
+            } else {
+                MediaPlayerPool.getInstance().recycle(mMediaPlayer);
+            }
             mMediaPlayer = null;
-            mCurrentState = STATE_IDLE;
+            mDisplayDetached = false;
+            setCurrentState(STATE_IDLE);
             if (cleartargetstate) {
                 mTargetState  = STATE_IDLE;
+                releaseNext();
             }
         }
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        // the controller keeps its window while hidden, don't leak it
+        if (mMediaController != null) {
+            mMediaController.removeWindow();
+        }
+    }
+
     @Override
     public boolean onTouchEvent(MotionEvent ev) {
         if (isInPlaybackState() && mMediaController != null) {
@@ -578,9 +1044,23 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
     }
 
     public void start() {
+        // ask for a decoder as a playing view from here on
+        mTargetState = STATE_PLAYING;
+        reopenReclaimed();
+        if (mDeferOpen && !mOpenRequested) {
+            mOpenRequested = true;
+            if (mMediaPlayer == null) {
+                openVideo();
+            }
+        } else if (mMediaPlayer == null
+                && DecoderGovernor.getInstance().isWaiting(mDecoderClient)) {
+            // waited with a lower priority, may reclaim a slot now
+            openVideo();
+        }
         if (isInPlaybackState()) {
             mMediaPlayer.start();
-            mCurrentState = STATE_PLAYING;
+            setCurrentState(STATE_PLAYING);
+            syncClock();
         }
         mTargetState = STATE_PLAYING;
     }
@@ -589,23 +1069,33 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
         if (isInPlaybackState()) {
             if (mMediaPlayer.isPlaying()) {
                 mMediaPlayer.pause();
-                mCurrentState = STATE_PAUSED;
+                setCurrentState(STATE_PAUSED);
             }
+            syncClock();
+            saveBookmark(getCurrentPosition());
         }
         mTargetState = STATE_PAUSED;
     }
 
     public void suspend() {
+        releaseNext();
         if (isInPlaybackState()) {
-        	mSeekWhenPrepared = getCurrentPosition();
+        	mSeekWhenPrepared = mMediaPlayer.getCurrentPosition();
+        	mClock.sync(mSeekWhenPrepared, false);
+            saveBookmark(mSeekWhenPrepared);
             if (MediaPlayerInternals.suspend(mMediaPlayer)) {
                 mStateWhenSuspended = mCurrentState;
-                mCurrentState = STATE_SUSPEND;
+                setCurrentState(STATE_SUSPEND);
                 mTargetState = STATE_SUSPEND;
+                // the suspended player has given up its decoder
+                DecoderGovernor.getInstance().release(mDecoderClient);
             } else {
                 release(false);
-                mCurrentState = STATE_SUSPEND_UNSUPPORTED;
+                setCurrentState(STATE_SUSPEND_UNSUPPORTED);
                 Log.w(TAG, "Unable to suspend video. Release MediaPlayer.");
+                // keep what is needed to continue, even from another process
+                new ResumeSnapshot(mUri, mSeekWhenPrepared, mVideoWidth, mVideoHeight,
+                        mCanPause, mCanSeekBack, mCanSeekForward).save(getContext());
             }
         }
     }
@@ -616,19 +1106,581 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
             return;
         }
         if (mMediaPlayer != null && mCurrentState == STATE_SUSPEND) {
+            if (!DecoderGovernor.getInstance().acquire(mDecoderClient)) {
+                // resumed once a decoder is free
+                return;
+            }
             if (MediaPlayerInternals.resume(mMediaPlayer)) {
-                mCurrentState = mStateWhenSuspended;
+                setCurrentState(mStateWhenSuspended);
                 mTargetState = mStateWhenSuspended;
+                syncClock();
             } else {
                 Log.w(TAG, "Unable to resume video");
             }
             return;
         }
         if (mCurrentState == STATE_SUSPEND_UNSUPPORTED) {
+            mResumingFromSnapshot = true;
+            mOpenRequested = true;
             openVideo();
         }
     }
 
+    /*
+     * The decoder slot of this view. A view that is neither playing nor on
+     * screen gives its slot up to views that need it more, by suspending its
+     * player where the platform allows and releasing it otherwise. It opens
+     * again on the next start() or preload().
+     */
+    private final DecoderGovernor.Client mDecoderClient = new DecoderGovernor.Client() {
+        public int getDecoderPriority() {
+            if (mCurrentState == STATE_PLAYING || mTargetState == STATE_PLAYING) {
+                return DecoderGovernor.PRIORITY_PLAYING;
+            }
+            if (mScheduledPriority >= 0) {
+                return mScheduledPriority;
+            }
+            // attached but scrolled out of the viewport counts as off screen
+            if (getWindowToken() != null && isShown() && getGlobalVisibleRect(mVisibleRect)) {
+                return DecoderGovernor.PRIORITY_VISIBLE;
+            }
+            return DecoderGovernor.PRIORITY_BACKGROUND;
+        }
+
+        public boolean reclaimDecoder() {
+            if (mCurrentState == STATE_PLAYING) {
+                return false;
+            }
+            if (mMediaPlayer != null && isInPlaybackState()) {
+                mSeekWhenPrepared = mMediaPlayer.getCurrentPosition();
+                mClock.sync(mSeekWhenPrepared, false);
+                saveBookmark(mSeekWhenPrepared);
+                if (MediaPlayerInternals.suspend(mMediaPlayer)) {
+                    mStateWhenSuspended = mCurrentState;
+                    setCurrentState(STATE_SUSPEND);
+                    mDecoderReclaimed = true;
+                    DecoderGovernor.getInstance().release(this);
+                    return true;
+                }
+            }
+            if (mMediaPlayer != null) {
+                int target = mTargetState;
+                release(false);
+                mTargetState = target;
+                mDecoderReclaimed = true;
+            }
+            DecoderGovernor.getInstance().release(this);
+            return true;
+        }
+
+        public void onDecoderGranted() {
+            if (mCurrentState == STATE_SUSPEND && mMediaPlayer != null) {
+                resume();
+            } else if (mMediaPlayer == null && mUri != null) {
+                openVideo();
+            }
+            if (mMediaPlayer != null && mCurrentState != STATE_SUSPEND) {
+                return;
+            }
+            if (mUri == null || (mDeferOpen && !mOpenRequested)) {
+                // not needed any more
+                DecoderGovernor.getInstance().release(this);
+            } else {
+                // no surface yet, keep the place instead of the idle slot
+                DecoderGovernor.getInstance().requeue(this);
+            }
+        }
+    };
+
+    /*
+     * The decoder priority of the view while it isn't playing, as decided by
+     * a FeedPlaybackScheduler, or -1 to decide it from the view itself.
+     */
+    void setScheduledPriority(int priority) {
+        mScheduledPriority = priority;
+    }
+
+    /*
+     * Whether the governor took the player away since the last start() or
+     * preload().
+     */
+    boolean isDecoderReclaimed() {
+        return mDecoderReclaimed;
+    }
+
+    private void reopenReclaimed() {
+        if (!mDecoderReclaimed) {
+            return;
+        }
+        mDecoderReclaimed = false;
+        if (mCurrentState == STATE_SUSPEND) {
+            resume();
+        } else {
+            openVideo();
+        }
+    }
+
+    /**
+     * Don't open the player as soon as there is a video and a surface, but
+     * only once {@link #preload()} or {@link #start()} is called. Meant for
+     * views in a scrolling feed, where a {@link FeedPlaybackScheduler}
+     * decides which of them get a player.
+     *
+     * @param defer Whether to wait for preload() or start().
+     */
+    public void setDeferredOpen(boolean defer) {
+        mDeferOpen = defer;
+        mUndeferOnOpen = false;
+        if (!defer && mMediaPlayer == null) {
+            openVideo();
+        }
+    }
+
+    /*
+     * Stop deferring the open without opening a player now, for views handed
+     * back by a FeedPlaybackScheduler. A view without a player still waits
+     * for start() or preload(), and opens players by itself after that.
+     */
+    void endDeferredOpen() {
+        if (!mDeferOpen) {
+            return;
+        }
+        if (mMediaPlayer != null || mUri == null) {
+            mDeferOpen = false;
+        } else {
+            mUndeferOnOpen = true;
+        }
+    }
+
+    /**
+     * Open and prepare the player without starting the playback, so that a
+     * later {@link #start()} plays at once. Only needed with
+     * {@link #setDeferredOpen(boolean)}.
+     */
+    public void preload() {
+        reopenReclaimed();
+        if (mOpenRequested) {
+            return;
+        }
+        mOpenRequested = true;
+        if (mMediaPlayer == null) {
+            openVideo();
+        }
+    }
+
+    /**
+     * Release the player but keep the video and the position, so that a
+     * later {@link #preload()} or {@link #start()} continues from there.
+     * The poster is shown in the meantime, if enabled.
+     */
+    public void unload() {
+        mDecoderReclaimed = false;
+        if (!mOpenRequested && mMediaPlayer == null) {
+            return;
+        }
+        mOpenRequested = false;
+        if (isInPlaybackState()) {
+            mSeekWhenPrepared = getCurrentPosition();
+            saveBookmark(mSeekWhenPrepared);
+        }
+        release(true);
+        hidePoster();
+        if (mPosterEnabled && mUri != null) {
+            requestPoster(mUri);
+        }
+    }
+
+    /**
+     * Remember the position of each video in the given store. The position
+     * is saved when the playback is paused or suspended, and a video opened
+     * with {@link #setVideoURI} starts where it was left off. A video played
+     * to the end starts from the beginning next time.
+     *
+     * @param store The store to use, or null to stop keeping bookmarks.
+     */
+    public void setBookmarkStore(BookmarkStore store) {
+        mBookmarkStore = store;
+    }
+
+    public BookmarkStore getBookmarkStore() {
+        return mBookmarkStore;
+    }
+
+    private void saveBookmark(int position) {
+        // watched to the end, the completion listener removed the bookmark
+        if (mCurrentState == STATE_PLAYBACK_COMPLETED) {
+            return;
+        }
+        if (mBookmarkStore != null && mUri != null) {
+            mBookmarkStore.put(mUri, position);
+        }
+    }
+
+    /**
+     * Show a poster frame of the video while it is being opened, so that the
+     * view isn't black until the first frame is decoded. Posters are
+     * extracted in the background the first time a video is opened and
+     * cached by {@link PosterCache}.
+     */
+    public void setPosterEnabled(boolean enabled) {
+        mPosterEnabled = enabled;
+        if (!enabled) {
+            hidePoster();
+        }
+    }
+
+    public boolean isPosterEnabled() {
+        return mPosterEnabled;
+    }
+
+    private void requestPoster(Uri uri) {
+        PosterCache cache = PosterCache.getInstance(getContext());
+        PosterCache.Poster poster = cache.acquire(uri);
+        if (poster != null) {
+            showPoster(poster);
+        } else {
+            cache.request(uri, mPosterLoadedListener);
+        }
+    }
+
+    private PosterCache.OnPosterLoadedListener mPosterLoadedListener =
+        new PosterCache.OnPosterLoadedListener() {
+        public void onPosterLoaded(Uri uri, PosterCache.Poster poster) {
+            if (poster == null) {
+                return;
+            }
+            // too late if the video has moved on in the meantime
+            if (mPosterEnabled && mPoster == null && uri.equals(mUri) && !isPlaying()) {
+                showPoster(poster);
+            } else {
+                PosterCache.getInstance(getContext()).release(poster);
+            }
+        }
+    };
+
+    private void showPoster(PosterCache.Poster poster) {
+        mPoster = poster;
+        mPosterPlayingFrom = -1;
+        setBackgroundDrawable(new BitmapDrawable(getResources(), poster.getBitmap()));
+        updateFirstFrameCheck();
+    }
+
+    /*
+     * Watch for the first frame only while playing, a paused, preloaded or
+     * unloaded view must not keep waking up the UI thread.
+     */
+    private void updateFirstFrameCheck() {
+        removeCallbacks(mCheckFirstFrame);
+        if (mPoster != null && mCurrentState == STATE_PLAYING) {
+            mPosterPlayingFrom = -1;
+            post(mCheckFirstFrame);
+        }
+    }
+
+    private void hidePoster() {
+        if (mPoster != null) {
+            removeCallbacks(mCheckFirstFrame);
+            setBackgroundDrawable(null);
+            PosterCache.getInstance(getContext()).release(mPoster);
+            mPoster = null;
+        }
+    }
+
+    /*
+     * There is no callback for the first rendered frame, so the position is
+     * watched instead: once it moves on from where playback started, frames
+     * are being drawn.
+     */
+    private Runnable mCheckFirstFrame = new Runnable() {
+        public void run() {
+            if (mPoster == null || mCurrentState != STATE_PLAYING || mMediaPlayer == null) {
+                return;
+            }
+            // the player itself, the interpolated clock moves on regardless
+            int position = mMediaPlayer.getCurrentPosition();
+            if (mPosterPlayingFrom < 0) {
+                mPosterPlayingFrom = position;
+            } else if (position > mPosterPlayingFrom) {
+                hidePoster();
+                return;
+            }
+            postDelayed(this, 50);
+        }
+    };
+
+    /**
+     * Continue the playback that this or an earlier process had to release
+     * in {@link #suspend()}, from the position it was released at. Use this
+     * instead of {@link #setVideoURI} when the activity is recreated after
+     * the process was killed.
+     *
+     * @return Whether there was a playback to continue.
+     */
+    public boolean resumeFromSnapshot() {
+        ResumeSnapshot snapshot = ResumeSnapshot.load(getContext());
+        if (snapshot == null) {
+            return false;
+        }
+        // known in advance, so the layout doesn't jump once prepared
+        mVideoWidth = snapshot.mVideoWidth;
+        mVideoHeight = snapshot.mVideoHeight;
+        mCanPause = snapshot.mCanPause;
+        mCanSeekBack = snapshot.mCanSeekBack;
+        mCanSeekForward = snapshot.mCanSeekForward;
+        setVideoURI(snapshot.mUri);
+        mSeekWhenPrepared = snapshot.mPosition;
+        mResumingFromSnapshot = true;
+        start();
+        return true;
+    }
+
+    /**
+     * Keep the player alive when the surface of this view is destroyed, for
+     * example when the app is switched away from or the screen is locked.
+     * The video stops being decoded onto the screen but the audio goes on,
+     * and once a new surface is created the video is shown on it without
+     * preparing the stream again. Call {@link #pause()} or
+     * {@link #stopPlayback()} if the audio must not continue.
+     * <p>
+     * Before Ice Cream Sandwich a running player can't be moved to another
+     * surface. There the player is released when its surface goes away and
+     * reopened at the same position on the new one.
+     * <p>
+     * Off by default: the player is released when its surface goes away.
+     *
+     * @param keep Whether to keep playing without a surface.
+     */
+    public void setKeepPlayingOnSurfaceLoss(boolean keep) {
+        mKeepPlayingOnSurfaceLoss = keep;
+    }
+
+    public boolean getKeepPlayingOnSurfaceLoss() {
+        return mKeepPlayingOnSurfaceLoss;
+    }
+
+    /**
+     * Take the player off this view without stopping it, so that it can be
+     * attached to another VideoView with {@link #attachPlayback}. The player
+     * keeps its position, buffers and listeners; this view is left idle.
+     * Before Ice Cream Sandwich the player is released instead, and the
+     * other view opens the video again at the same position.
+     *
+     * @return The detached playback, or null if there is no player that can
+     * be detached.
+     */
+    public DetachedPlayback detachPlayback() {
+        if (!CAN_MOVE_DISPLAY) {
+            return detachForReopen();
+        }
+        if (mMediaPlayer == null || mCurrentState == STATE_ERROR
+                || mCurrentState == STATE_SUSPEND) {
+            return null;
+        }
+        releaseNext();
+        mPlaylist = null;
+        hidePoster();
+        if (mMediaController != null) {
+            mMediaController.hide();
+        }
+        if (mSurfaceHolder != null && !mDisplayDetached) {
+            try {
+                mMediaPlayer.setDisplay(null);
+            } catch (RuntimeException ex) {
+                Log.w(TAG, "Unable to detach display", ex);
+            }
+        }
+
+        DetachedPlayback playback = new DetachedPlayback();
+        playback.mPlayer = mMediaPlayer;
+        playback.mUri = mUri;
+        playback.mCurrentState = mCurrentState;
+        playback.mTargetState = mTargetState;
+        playback.mDuration = mDuration;
+        playback.mVideoWidth = mVideoWidth;
+        playback.mVideoHeight = mVideoHeight;
+        playback.mBufferPercentage = mCurrentBufferPercentage;
+        playback.mSeekWhenPrepared = mSeekWhenPrepared;
+        playback.mCanPause = mCanPause;
+        playback.mCanSeekBack = mCanSeekBack;
+        playback.mCanSeekForward = mCanSeekForward;
+        playback.mOnPreparedListener = mOnPreparedListener;
+        playback.mOnCompletionListener = mOnCompletionListener;
+        playback.mOnErrorListener = mOnErrorListener;
+        playback.mDetachTime = SystemClock.uptimeMillis();
+        playback.park();
+
+        mMediaPlayer = null;
+        mUri = null;
+        mDisplayDetached = false;
+        setCurrentState(STATE_IDLE);
+        mTargetState = STATE_IDLE;
+        DecoderGovernor.getInstance().release(mDecoderClient);
+        return playback;
+    }
+
+    /*
+     * The player can't be moved to another display, so only what is needed
+     * to open the video again at the same position is handed over. This also
+     * works after surfaceDestroyed() already released the player to reopen
+     * it on the next surface, as happens when an activity is recreated.
+     */
+    private DetachedPlayback detachForReopen() {
+        if (mUri == null || mCurrentState == STATE_ERROR || mCurrentState == STATE_SUSPEND) {
+            return null;
+        }
+        releaseNext();
+        mPlaylist = null;
+        hidePoster();
+        if (mMediaController != null) {
+            mMediaController.hide();
+        }
+
+        DetachedPlayback playback = new DetachedPlayback();
+        playback.mReopen = true;
+        playback.mUri = mUri;
+        playback.mCurrentState = STATE_IDLE;
+        playback.mTargetState = mCurrentState == STATE_PLAYING ? STATE_PLAYING : mTargetState;
+        playback.mSeekWhenPrepared = isInPlaybackState()
+                ? mMediaPlayer.getCurrentPosition() : mSeekWhenPrepared;
+        playback.mVideoWidth = mVideoWidth;
+        playback.mVideoHeight = mVideoHeight;
+        playback.mOnPreparedListener = mOnPreparedListener;
+        playback.mOnCompletionListener = mOnCompletionListener;
+        playback.mOnErrorListener = mOnErrorListener;
+        playback.mDetachTime = SystemClock.uptimeMillis();
+
+        release(true);
+        mUri = null;
+        setCurrentState(STATE_IDLE);
+        mTargetState = STATE_IDLE;
+        return playback;
+    }
+
+    /*
+     * Open the video of a playback detached by detachForReopen().
+     */
+    private void attachForReopen(DetachedPlayback playback) {
+        playback.mReopen = false;
+        if (mOnPreparedListener == null) {
+            mOnPreparedListener = playback.mOnPreparedListener;
+        }
+        if (mOnCompletionListener == null) {
+            mOnCompletionListener = playback.mOnCompletionListener;
+        }
+        if (mOnErrorListener == null) {
+            mOnErrorListener = playback.mOnErrorListener;
+        }
+        setVideoURI(playback.mUri);
+        mSeekWhenPrepared = playback.mSeekWhenPrepared;
+        if (playback.mVideoWidth != 0 && playback.mVideoHeight != 0) {
+            mVideoWidth = playback.mVideoWidth;
+            mVideoHeight = playback.mVideoHeight;
+        }
+        if (playback.mTargetState == STATE_PLAYING) {
+            start();
+        }
+    }
+
+    /**
+     * Continue a playback detached from another VideoView on this view's
+     * surface, replacing whatever this view was playing. If the surface
+     * doesn't exist yet, rendering starts as soon as it is created.
+     * Listeners carried by the playback are used unless this view has its
+     * own ones set.
+     *
+     * @param playback The playback returned by {@link #detachPlayback()}.
+     */
+    public void attachPlayback(DetachedPlayback playback) {
+        if (playback == null || !playback.isValid()) {
+            return;
+        }
+        if (playback.mReopen) {
+            attachForReopen(playback);
+            return;
+        }
+        releaseNext();
+        mPlaylist = null;
+        release(false);
+
+        mMediaPlayer = playback.mPlayer;
+        playback.mPlayer = null;
+        DecoderGovernor.getInstance().hold(mDecoderClient);
+        mReattachStart = playback.mDetachTime;
+        mOpenTime = 0;
+        mUri = playback.mUri;
+        // getDuration() falls back to it while the player is still preparing
+        mKnownInfo = MediaInfoCache.getInstance(getContext()).get(mUri);
+        if (playback.mPreparedWhileDetached && playback.mCurrentState != STATE_ERROR) {
+            // still preparing as far as this view knows, onPrepared() follows
+            setCurrentState(STATE_PREPARING);
+        } else {
+            setCurrentState(playback.mCurrentState);
+        }
+        mTargetState = playback.mTargetState;
+        mDuration = playback.mDuration;
+        mVideoWidth = playback.mVideoWidth;
+        mVideoHeight = playback.mVideoHeight;
+        mCurrentBufferPercentage = playback.mBufferPercentage;
+        mBufferedRanges.clear();
+        mBufferedRanges.onBufferingUpdate(mCurrentBufferPercentage, mDuration);
+        mSeekWhenPrepared = playback.mSeekWhenPrepared;
+        mCanPause = playback.mCanPause;
+        mCanSeekBack = playback.mCanSeekBack;
+        mCanSeekForward = playback.mCanSeekForward;
+        if (mOnPreparedListener == null) {
+            mOnPreparedListener = playback.mOnPreparedListener;
+        }
+        if (mOnCompletionListener == null) {
+            mOnCompletionListener = playback.mOnCompletionListener;
+        }
+        if (mOnErrorListener == null) {
+            mOnErrorListener = playback.mOnErrorListener;
+        }
+
+        mMediaPlayer.setOnPreparedListener(mPreparedListener);
+        mMediaPlayer.setOnVideoSizeChangedListener(mSizeChangedListener);
+        mMediaPlayer.setOnCompletionListener(mCompletionListener);
+        mMediaPlayer.setOnErrorListener(mErrorListener);
+        mMediaPlayer.setOnBufferingUpdateListener(mBufferingUpdateListener);
+        syncClock();
+
+        if (mVideoWidth != 0 && mVideoHeight != 0) {
+            getHolder().setFixedSize(mVideoWidth, mVideoHeight);
+        }
+        if (mSurfaceHolder != null) {
+            attachDisplay(mSurfaceHolder);
+        } else {
+            mDisplayDetached = true;
+        }
+        attachMediaController();
+        requestLayout();
+        invalidate();
+
+        // deliver what happened while the player had no view
+        if (mCurrentState == STATE_ERROR) {
+            mErrorListener.onError(mMediaPlayer, playback.mErrorWhat, playback.mErrorExtra);
+            return;
+        }
+        if (playback.mPreparedWhileDetached) {
+            mPreparedListener.onPrepared(mMediaPlayer);
+        }
+        if (playback.mCompletedWhileDetached) {
+            mCompletionListener.onCompletion(mMediaPlayer);
+        }
+    }
+
+    /**
+     * Move the playback of this view to another one without interrupting it.
+     *
+     * @param target The view that continues the playback.
+     */
+    public void transferPlaybackTo(VideoView target) {
+        DetachedPlayback playback = detachPlayback();
+        if (playback != null) {
+            target.attachPlayback(playback);
+        }
+    }
+
    // cache duration as mDuration for faster access
     public int getDuration() {
         if (isInPlaybackState()) {
@@ -639,19 +1691,75 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
             return mDuration;
         }
         mDuration = -1;
+        if (mCurrentState == STATE_PREPARING && mKnownInfo != null) {
+            // known from an earlier session
+            return mKnownInfo.mDuration;
+        }
         return mDuration;
     }
 
+    /**
+     * @return The playback position in milliseconds. The player is asked for
+     * it only a few times a second, in between the position is interpolated,
+     * so this is cheap to call on every frame.
+     */
     public int getCurrentPosition() {
         if (isInPlaybackState()) {
-            return mMediaPlayer.getCurrentPosition();
+            return mClock.getPosition(mMediaPlayer);
+        }
+        if (mCurrentState == STATE_PREPARING) {
+            // where playback will start once prepared
+            return mSeekWhenPrepared;
         }
         return 0;
     }
 
+    private void setCurrentState(int state) {
+        if (mCurrentState == state) {
+            return;
+        }
+        mCurrentState = state;
+        mStateStream.publishState(state);
+        updatePositionTicks();
+        updateFirstFrameCheck();
+    }
+
+    private void updatePositionTicks() {
+        mStateStream.setTicking(mCurrentState == STATE_PLAYING && mStateStream.hasObservers());
+    }
+
+    /**
+     * Observe the state and position of the playback. Unlike the single
+     * listeners of the setOn...Listener() methods, any number of observers
+     * can be added, and all of them share the position updates, so none of
+     * them has to poll the player.
+     */
+    public void addPlaybackObserver(PlaybackObserver observer) {
+        mStateStream.add(observer);
+        updatePositionTicks();
+    }
+
+    public void removePlaybackObserver(PlaybackObserver observer) {
+        mStateStream.remove(observer);
+        updatePositionTicks();
+    }
+
+    /*
+     * Take over the position of the player after its state has changed.
+     */
+    private void syncClock() {
+        if (isInPlaybackState()) {
+            mClock.setDuration(getDuration());
+            mClock.sync(mMediaPlayer.getCurrentPosition(), mCurrentState == STATE_PLAYING);
+        }
+    }
+
     public void seekTo(int msec) {
         if (isInPlaybackState()) {
             mMediaPlayer.seekTo(msec);
+            mClock.seek(msec);
+            mBufferedRanges.onSeek(msec);
+            mStateStream.publishPosition(msec, getDuration());
             mSeekWhenPrepared = 0;
         } else {
             mSeekWhenPrepared = msec;
@@ -669,6 +1777,27 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
         return 0;
     }
 
+    public int getBufferedRanges(int[] out) {
+        if (mMediaPlayer != null) {
+            return mBufferedRanges.get(out);
+        }
+        return 0;
+    }
+
+    /**
+     * @return Whether a seek to the position can be served from data that is
+     * already buffered.
+     */
+    public boolean isBuffered(int position) {
+        return mMediaPlayer != null && mBufferedRanges.isBuffered(position);
+    }
+
+    private static boolean isLocal(Uri uri) {
+        String scheme = uri.getScheme();
+        return scheme == null || "file".equals(scheme) || "content".equals(scheme)
+                || "android.resource".equals(scheme);
+    }
+
     private boolean isInPlaybackState() {
         return (mMediaPlayer != null &&
                 mCurrentState != STATE_ERROR &&
@@ -700,40 +1829,76 @@ public class VideoView extends SurfaceView implements MediaPlayerControl {
 	}
 	
 	private View savedContentView;
+	private ViewGroup mFullScreenLayout;
 	
+	/**
+	 * @return The time in milliseconds from the last {@link #detachPlayback()}
+	 * until the playback attached to this view was rendering to its surface,
+	 * or -1 if unknown.
+	 */
+	public long getLastReattachTime() {
+		return mLastReattachTime;
+	}
+
+	/**
+	 * @return The time in milliseconds from the last fullscreen toggle until
+	 * the player was rendering to the new surface, or -1 if unknown.
+	 */
+	public long getLastFullscreenSwitchTime() {
+		return mLastFullscreenSwitchTime;
+	}
+
+	/*
+	 * The view is moved between parents without stopping the player: it
+	 * keeps decoding while the surface is recreated and is then pointed at
+	 * the new one. Before Ice Cream Sandwich, or if the platform refuses to
+	 * detach the display, the player is released by surfaceDestroyed() and
+	 * reopened at its position on the new surface.
+	 */
 	@Override
 	public void setFullscreen(boolean fullscreen) {
 		Activity activity = (Activity) getContext();
+		mFullscreenSwitchStart = SystemClock.uptimeMillis();
 		
 		if (fullscreen) {
 			activity.getWindow().setFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN,
 					WindowManager.LayoutParams.FLAG_FULLSCREEN);
 
-			suspend();
-
 			savedContentView = ((ViewGroup) activity.findViewById(android.R.id.content)).getChildAt(0);
-			ViewGroup container = (ViewGroup) getParent();
-			container.removeView(this);
-			activity.setContentView(mFullScreenLayout);
+			detachFromParent();
+			activity.setContentView(getFullscreenLayout());
 			
-			container = (FrameLayout) activity.findViewById(R.id.videoContainer); 
+			ViewGroup container = (FrameLayout) activity.findViewById(R.id.videoContainer); 
 			container.addView(this);
-
-			resume();
-			start();
 		} else {
 			activity.getWindow().clearFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN);
 
-			suspend();
-
-			ViewGroup container = (ViewGroup) getParent();
-			container.removeView(this);
+			detachFromParent();
 			activity.setContentView(savedContentView);
-			container = (FrameLayout) activity.findViewById(R.id.videoContainer); 
+			ViewGroup container = (FrameLayout) activity.findViewById(R.id.videoContainer); 
 			container.addView(this);
+		}
+	}
+
+	/*
+	 * Most views never go fullscreen, so the layout is only inflated on the
+	 * first switch. It lives as long as this view, not in any shared map
+	 * that could keep the activity alive.
+	 */
+	private ViewGroup getFullscreenLayout() {
+		if (mFullScreenLayout == null) {
+			LayoutInflater inflater = (LayoutInflater) getContext().getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+			mFullScreenLayout = (ViewGroup) inflater.inflate(R.layout.fullscreen, null);
+		}
+		return mFullScreenLayout;
+	}
 
-			resume();
-			start();
+	private void detachFromParent() {
+		mMovingSurface = true;
+		try {
+			((ViewGroup) getParent()).removeView(this);
+		} finally {
+			mMovingSurface = false;
 		}
 	}
 }
@@ -0,0 +1,317 @@
+package ru.denivip.android.video;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Scrub previews from a WebVTT thumbnail track, as served next to many
+ * streams. Each cue of the track names an image, usually a region of a
+ * sprite sheet:
+ * <pre>
+ * 00:00:00.000 --&gt; 00:00:05.000
+ * sprite-0.jpg#xywh=0,0,160,90
+ * </pre>
+ * Sprite sheets are downloaded once into the cache directory, which keeps
+ * the most recently used sheets up to 16 MB. The sheet of
+ * the last tile stays decoded, since neighbouring tiles usually share it.
+ */
+public class WebVttThumbnailProvider implements ScrubPreviewProvider {
+    private static final String TAG = "WebVttThumbnailProvider";
+    private static final String ARROW = "-->";
+    private static final String XYWH = "#xywh=";
+    private static final long MAX_DISK_BYTES = 16 * 1024 * 1024;
+
+    private final Context mContext;
+    private final Uri mTrack;
+    private final File mDir;
+
+    // written once by prepare(), then read on the UI thread
+    private volatile Cues mCues;
+
+    // used on the background thread only
+    private String mSheetUrl;
+    private Bitmap mSheet;
+
+    private static final class Cues {
+        final int[] mStarts;
+        final int[] mEnds;
+        final String[] mImages;
+        final int[][] mRegions;  // x, y, w, h or null for the whole image
+
+        Cues(int count) {
+            mStarts = new int[count];
+            mEnds = new int[count];
+            mImages = new String[count];
+            mRegions = new int[count][];
+        }
+    }
+
+    /**
+     * @param track The WebVTT file listing the thumbnails.
+     */
+    public WebVttThumbnailProvider(Context context, Uri track) {
+        mContext = context.getApplicationContext();
+        mTrack = track;
+        mDir = new File(mContext.getCacheDir(), "thumbnails");
+    }
+
+    public void prepare() {
+        InputStream in = null;
+        try {
+            in = open(mTrack.toString());
+            mCues = parse(new BufferedReader(new InputStreamReader(in, "UTF-8")));
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to read thumbnail track " + mTrack, ex);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    public int getTileIndex(int position, int duration) {
+        Cues cues = mCues;
+        if (cues == null) {
+            return -1;
+        }
+        // binary search for the last cue starting at or before the position
+        int low = 0;
+        int high = cues.mStarts.length - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (cues.mStarts[mid] <= position) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found >= 0 && position < cues.mEnds[found] ? found : -1;
+    }
+
+    public Bitmap loadTile(int index) {
+        Cues cues = mCues;
+        String url = resolve(cues.mImages[index]);
+        if (!url.equals(mSheetUrl)) {
+            if (mSheet != null) {
+                mSheet.recycle();
+                mSheet = null;
+            }
+            mSheetUrl = url;
+            mSheet = decodeSheet(url);
+        }
+        if (mSheet == null) {
+            return null;
+        }
+        int[] r = cues.mRegions[index];
+        if (r == null) {
+            return mSheet.copy(mSheet.getConfig(), false);
+        }
+        int x = Math.min(r[0], mSheet.getWidth() - 1);
+        int y = Math.min(r[1], mSheet.getHeight() - 1);
+        int w = Math.min(r[2], mSheet.getWidth() - x);
+        int h = Math.min(r[3], mSheet.getHeight() - y);
+        Bitmap tile = Bitmap.createBitmap(mSheet, x, y, w, h);
+        if (tile == mSheet) {
+            // the region is the whole sheet, which is recycled with the next one
+            tile = mSheet.copy(mSheet.getConfig(), false);
+        }
+        return tile;
+    }
+
+    private Bitmap decodeSheet(String url) {
+        File file = new File(mDir, Long.toHexString(BookmarkStore.hash(url)));
+        if (file.exists()) {
+            // keeps it from being trimmed as the least recently used
+            file.setLastModified(System.currentTimeMillis());
+        } else if (download(url, file)) {
+            trimDisk();
+        } else {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+
+    private boolean download(String url, File file) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            return false;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = open(url);
+            out = new FileOutputStream(tmp);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            out.close();
+            out = null;
+            return tmp.renameTo(file);
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to download " + url, ex);
+            return false;
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+    }
+
+    /*
+     * Delete the least recently used sheets above the limit.
+     */
+    private void trimDisk() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= MAX_DISK_BYTES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        // the newest one is about to be decoded
+        for (int i = 0; i < files.length - 1 && total > MAX_DISK_BYTES; i++) {
+            total -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    private InputStream open(String url) throws IOException {
+        Uri uri = Uri.parse(url);
+        String scheme = uri.getScheme();
+        if ("http".equals(scheme) || "https".equals(scheme)) {
+            return new URL(url).openStream();
+        }
+        return mContext.getContentResolver().openInputStream(uri);
+    }
+
+    /*
+     * Image names are relative to the track unless they are absolute URLs.
+     */
+    private String resolve(String image) {
+        if (image.indexOf("://") >= 0) {
+            return image;
+        }
+        String track = mTrack.toString();
+        if (image.startsWith("/")) {
+            int host = track.indexOf('/', track.indexOf("://") + 3);
+            return (host >= 0 ? track.substring(0, host) : track) + image;
+        }
+        return track.substring(0, track.lastIndexOf('/') + 1) + image;
+    }
+
+    private static Cues parse(BufferedReader reader) throws IOException {
+        ArrayList<int[]> times = new ArrayList<int[]>();
+        ArrayList<String> payloads = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int arrow = line.indexOf(ARROW);
+            if (arrow < 0) {
+                continue;
+            }
+            String payload = reader.readLine();
+            if (payload == null || payload.trim().length() == 0) {
+                continue;
+            }
+            int start = parseTime(line.substring(0, arrow).trim());
+            String end = line.substring(arrow + ARROW.length()).trim();
+            int space = end.indexOf(' ');  // cue settings may follow
+            int stop = parseTime(space >= 0 ? end.substring(0, space) : end);
+            if (start >= 0 && stop > start) {
+                times.add(new int[] { start, stop });
+                payloads.add(payload.trim());
+            }
+        }
+
+        Cues cues = new Cues(times.size());
+        for (int i = 0; i < times.size(); i++) {
+            cues.mStarts[i] = times.get(i)[0];
+            cues.mEnds[i] = times.get(i)[1];
+            String payload = payloads.get(i);
+            int fragment = payload.indexOf(XYWH);
+            if (fragment >= 0) {
+                cues.mImages[i] = payload.substring(0, fragment);
+                cues.mRegions[i] = parseRegion(payload.substring(fragment + XYWH.length()));
+            } else {
+                cues.mImages[i] = payload;
+            }
+        }
+        return cues;
+    }
+
+    private static int[] parseRegion(String s) {
+        String[] parts = s.split(",");
+        if (parts.length != 4) {
+            return null;
+        }
+        try {
+            int[] region = new int[4];
+            for (int i = 0; i < 4; i++) {
+                region[i] = Integer.parseInt(parts[i].trim());
+            }
+            return region[2] > 0 && region[3] > 0 ? region : null;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /*
+     * Parse [hh:]mm:ss.ttt into milliseconds, or -1.
+     */
+    private static int parseTime(String s) {
+        try {
+            String[] parts = s.split(":");
+            int minutes = 0;
+            for (int i = 0; i < parts.length - 1; i++) {
+                minutes = minutes * 60 + Integer.parseInt(parts[i]);
+            }
+            String last = parts[parts.length - 1];
+            int dot = last.indexOf('.');
+            int millis = 0;
+            if (dot >= 0) {
+                millis = Integer.parseInt(last.substring(dot + 1));
+                last = last.substring(0, dot);
+            }
+            return (minutes * 60 + Integer.parseInt(last)) * 1000 + millis;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException ex) {
+                // nothing to do
+            }
+        }
+    }
+}